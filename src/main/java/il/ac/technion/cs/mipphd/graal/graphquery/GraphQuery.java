@@ -2,8 +2,17 @@ package il.ac.technion.cs.mipphd.graal.graphquery;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import il.ac.technion.cs.mipphd.graal.graphquery.bfs.GenericBFSKt;
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.MatchOptions;
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.MatchStatistics;
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.ParallelBFSKt;
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.QueryPlan;
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.QueryPlanner;
 import il.ac.technion.cs.mipphd.graal.utils.CFGWrapper;
 import il.ac.technion.cs.mipphd.graal.utils.GraalIRGraph;
+import io.reactivex.rxjava3.core.Flowable;
+import kotlin.collections.CollectionsKt;
+import kotlin.sequences.SequencesKt;
+import kotlin.streams.jdk8.StreamsKt;
 import org.graalvm.compiler.nodes.cfg.ControlFlowGraph;
 import org.jgrapht.graph.DirectedPseudograph;
 import org.jgrapht.nio.Attribute;
@@ -16,11 +25,16 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 
 public class GraphQuery extends DirectedPseudograph<GraphQueryVertex, GraphQueryEdge> {
+    private static final ConcurrentHashMap<String, GraphQuery> cachedQueries = new ConcurrentHashMap<>();
+
+    private boolean frozen = false;
+
     public GraphQuery() {
         super(
                 () -> GraphQueryVertex.fromQuery("true"),
@@ -30,8 +44,53 @@ public class GraphQuery extends DirectedPseudograph<GraphQueryVertex, GraphQuery
 
     /* TODO: Move match methods somewhere else, now that it might not be with BFS */
     @NonNull
-    protected Stream<Map<GraphQueryVertex, List<AnalysisNode>>> _match(AnalysisGraph cfg) {
-        return GenericBFSKt.bfsMatch(this, cfg, this.startCandidate(cfg)).stream();
+    protected Stream<Map<GraphQueryVertex, List<AnalysisNode>>> _match(AnalysisGraphView cfg) {
+        return matchLazily(cfg, MatchOptions.DEFAULT);
+    }
+
+    /**
+     * Matches of this query, searched for as the stream is consumed, so e.g. {@code limit} and {@code findFirst} stop
+     * the search early. The graph must not change until the stream is closed or exhausted.
+     */
+    @NonNull
+    public Stream<Map<GraphQueryVertex, List<AnalysisNode>>> matchLazily(@NonNull AnalysisGraphView graph) {
+        return _match(graph);
+    }
+
+    @NonNull
+    public Stream<Map<GraphQueryVertex, List<AnalysisNode>>> matchLazily(@NonNull AnalysisGraphView graph,
+                                                                         @NonNull MatchOptions options) {
+        return StreamsKt.asStream(
+                GenericBFSKt.bfsMatchLazily(this, graph, QueryPlanner.plan(this, graph, options), null, options, null));
+    }
+
+    /**
+     * Matches of this query, searched for on request: the search only runs ahead of the subscriber's requests by one
+     * match, and stops on cancellation.
+     */
+    @NonNull
+    public Flowable<Map<GraphQueryVertex, List<AnalysisNode>>> matchFlowable(@NonNull AnalysisGraphView graph) {
+        return Flowable.defer(() -> Flowable.fromIterable(SequencesKt.asIterable(GenericBFSKt.bfsMatchLazily(
+                this, graph, QueryPlanner.plan(this, graph), null, MatchOptions.DEFAULT, null))));
+    }
+
+    /**
+     * Whether this query matches anywhere in graph, stopping at the first match.
+     */
+    public boolean anyMatch(@NonNull AnalysisGraphView graph) {
+        return matchLazily(graph).findAny().isPresent();
+    }
+
+    /**
+     * Describe the plan chosen for matching this query on graph, with estimated and actual intermediate result sizes.
+     * Runs the match.
+     */
+    @NonNull
+    public String explain(@NonNull AnalysisGraphView graph) {
+        QueryPlan plan = QueryPlanner.plan(this, graph);
+        MatchStatistics statistics = new MatchStatistics();
+        GenericBFSKt.bfsMatch(this, graph, plan, statistics, MatchOptions.DEFAULT, null);
+        return plan.explain(statistics);
     }
 
     @NonNull
@@ -40,13 +99,62 @@ public class GraphQuery extends DirectedPseudograph<GraphQueryVertex, GraphQuery
     }
 
     @NonNull
-    public List<Map<GraphQueryVertex, List<AnalysisNode>>> match(@NonNull AnalysisGraph graph) {
+    public List<Map<GraphQueryVertex, List<AnalysisNode>>> match(@NonNull AnalysisGraphView graph) {
         return _match(graph).toList();
     }
 
+    @NonNull
+    public List<Map<GraphQueryVertex, List<AnalysisNode>>> match(@NonNull AnalysisGraphView graph,
+                                                                 @NonNull MatchOptions options) {
+        if (options.getParallelism() > 1)
+            return ParallelBFSKt.bfsMatchParallel(
+                    this, graph, QueryPlanner.plan(this, graph, options), null, options, null);
+        return matchLazily(graph, options).toList();
+    }
+
+    /**
+     * Matches of this query, stopping early if the budget runs out, in which case the table is flagged as truncated.
+     */
+    @NonNull
+    public MatchTable match(@NonNull AnalysisGraphView graph, @NonNull MatchOptions options,
+                            @NonNull MatchBudget budget) {
+        return matchTable(graph, options, budget);
+    }
+
+    @NonNull
+    public MatchTable match(@NonNull AnalysisGraphView graph, @NonNull MatchBudget budget) {
+        return matchTable(graph, MatchOptions.DEFAULT, budget);
+    }
+
+    /**
+     * Same matches as {@link #match(AnalysisGraphView, MatchOptions)}, stored in a {@link MatchTable} as they are found.
+     */
+    @NonNull
+    public MatchTable matchTable(@NonNull AnalysisGraphView graph, @NonNull MatchOptions options) {
+        return matchTable(graph, options, MatchBudget.UNLIMITED);
+    }
+
+    @NonNull
+    public MatchTable matchTable(@NonNull AnalysisGraphView graph, @NonNull MatchOptions options,
+                                 @NonNull MatchBudget budget) {
+        List<GraphQueryVertex> vertices = new ArrayList<>(vertexSet());
+        MatchBudget.Tracker tracker = budget.isUnlimited() ? null : budget.start();
+        QueryPlan plan = QueryPlanner.plan(this, graph, options);
+        if (options.getParallelism() > 1)
+            return MatchTable.collect(vertices, CollectionsKt.asSequence(
+                    ParallelBFSKt.bfsMatchParallel(this, graph, plan, null, options, tracker)), tracker);
+        return MatchTable.collect(vertices,
+                GenericBFSKt.bfsMatchLazily(this, graph, plan, null, options, tracker), tracker);
+    }
+
+    @NonNull
+    public MatchTable matchTable(@NonNull AnalysisGraphView graph) {
+        return matchTable(graph, MatchOptions.DEFAULT);
+    }
+
     @NonNull
     public List<Map<GraphQueryVertex, List<AnalysisNode>>> match(@NonNull ControlFlowGraph cfg) {
-        return match(GraalIRGraph.fromGraal(cfg));
+        return match(AnalysisGraph.Companion.fromGraal(cfg));
     }
 
     @NonNull
@@ -62,23 +170,67 @@ public class GraphQuery extends DirectedPseudograph<GraphQueryVertex, GraphQuery
         return ret.stream().toList();
     }
 
+    /**
+     * Compile the predicates of all vertices and edges, and reject any further change to the query, its vertices or
+     * its edges. A frozen query can be shared and matched from several threads.
+     */
     @NonNull
-    private GraphQueryVertex startCandidate(@NonNull AnalysisGraph cfg) {
-        final Set<AnalysisNode> nodes = new HashSet<>(cfg.vertexSet());
-        Optional<GraphQueryVertex> root = this.vertexSet().stream()
-                .filter(v -> !((Metadata) v.getMQuery()).getOptions().contains(MetadataOption.Repeated.INSTANCE) )
-                .filter(v -> this.inDegreeOf(v) == 0).findAny();
-        if (root.isPresent())
-            return root.get();
-        // TODO: Improve this more
-        Map<Long, List<GraphQueryVertex>> histogram = this.vertexSet().stream()
-                .filter(v -> !((Metadata) v.getMQuery()).getOptions().contains(MetadataOption.Repeated.INSTANCE) )
-                .collect(Collectors.groupingBy(v -> nodes
-                        .stream()
-                        .filter(n -> n instanceof AnalysisNode.IR)
-                        .map(n -> (AnalysisNode.IR) n)
-                        .map(AnalysisNode.IR::node).filter(v::match).count()));
-        return histogram.get(histogram.keySet().stream().min(Comparator.naturalOrder()).get()).get(0);
+    public GraphQuery freeze() {
+        vertexSet().forEach(GraphQueryVertex::freeze);
+        edgeSet().forEach(GraphQueryEdge::freeze);
+        frozen = true;
+        return this;
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen)
+            throw new IllegalStateException("Query is frozen");
+    }
+
+    @Override
+    public GraphQueryVertex addVertex() {
+        checkNotFrozen();
+        return super.addVertex();
+    }
+
+    @Override
+    public boolean addVertex(GraphQueryVertex v) {
+        checkNotFrozen();
+        return super.addVertex(v);
+    }
+
+    @Override
+    public boolean removeVertex(GraphQueryVertex v) {
+        checkNotFrozen();
+        return super.removeVertex(v);
+    }
+
+    @Override
+    public GraphQueryEdge addEdge(GraphQueryVertex sourceVertex, GraphQueryVertex targetVertex) {
+        checkNotFrozen();
+        return super.addEdge(sourceVertex, targetVertex);
+    }
+
+    @Override
+    public boolean addEdge(GraphQueryVertex sourceVertex, GraphQueryVertex targetVertex, GraphQueryEdge e) {
+        checkNotFrozen();
+        return super.addEdge(sourceVertex, targetVertex, e);
+    }
+
+    @Override
+    public GraphQueryEdge removeEdge(GraphQueryVertex sourceVertex, GraphQueryVertex targetVertex) {
+        checkNotFrozen();
+        return super.removeEdge(sourceVertex, targetVertex);
+    }
+
+    @Override
+    public boolean removeEdge(GraphQueryEdge e) {
+        checkNotFrozen();
+        return super.removeEdge(e);
     }
 
     public String export() {
@@ -130,4 +282,18 @@ public class GraphQuery extends DirectedPseudograph<GraphQueryVertex, GraphQuery
     public static GraphQuery importQuery(@NonNull String input) {
         return GraphQuery.importQuery(new StringReader(input));
     }
+
+    /**
+     * Import a query like {@link #importQuery(String)}, once per process: every caller passing the same text (ignoring
+     * indentation, trailing whitespace and blank lines) gets the same {@link #freeze() frozen} query.
+     */
+    @NonNull
+    public static GraphQuery cachedQuery(@NonNull String input) {
+        return cachedQueries.computeIfAbsent(normalizeQueryText(input), text -> importQuery(text).freeze());
+    }
+
+    @NonNull
+    private static String normalizeQueryText(@NonNull String input) {
+        return input.lines().map(String::strip).filter(line -> !line.isEmpty()).collect(Collectors.joining("\n"));
+    }
 }
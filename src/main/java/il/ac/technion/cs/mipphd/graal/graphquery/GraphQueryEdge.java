@@ -5,6 +5,9 @@ import org.jgrapht.graph.DefaultEdge;
 
 public class GraphQueryEdge extends DefaultEdge {
     protected MQuery mQuery;
+    private EdgeConstraint constraint;
+    private EdgePredicate predicate;
+    private boolean frozen = false;
 
     private static String buildQuery(GraphQueryEdgeType type, GraphQueryEdgeMatchType matchType) {
         StringBuilder query = new StringBuilder();
@@ -55,11 +58,38 @@ public class GraphQueryEdge extends DefaultEdge {
 
     public void setMQuery(@NonNull MQuery mQuery) {
         assert(mQuery instanceof Metadata);
+        if (frozen)
+            throw new IllegalStateException("Query is frozen");
         this.mQuery = mQuery;
+        this.constraint = null;
+        this.predicate = null;
+    }
+
+    /**
+     * Kind and label any matching edge must have, for picking candidate edges.
+     */
+    @NonNull
+    public EdgeConstraint getConstraint() {
+        if (constraint == null)
+            constraint = EdgeConstraint.of(mQuery);
+        return constraint;
+    }
+
+    @NonNull
+    private EdgePredicate getPredicate() {
+        if (predicate == null)
+            predicate = MQueryCompilerKt.compileEdgePredicate(mQuery);
+        return predicate;
+    }
+
+    void freeze() {
+        getConstraint();
+        getPredicate();
+        frozen = true;
     }
 
     public boolean match(@NonNull AnalysisNode otherSource, @NonNull AnalysisEdge otherEdge) {
-        return getMQuery().interpret(new QueryTargetEdge(otherSource, otherEdge));
+        return getPredicate().test(otherSource, otherEdge);
     }
 
     @NonNull
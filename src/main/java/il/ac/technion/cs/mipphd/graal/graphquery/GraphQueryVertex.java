@@ -10,6 +10,9 @@ import java.util.Optional;
 public class GraphQueryVertex implements Comparable<GraphQueryVertex> {
     @NonNull
     private MQuery mQuery;
+    private NodePredicate predicate;
+    private NodeTypeConstraint typeConstraint;
+    private boolean frozen = false;
 
     public GraphQueryVertex(@NotNull MQuery mQuery) {
         this.mQuery = mQuery;
@@ -33,7 +36,38 @@ public class GraphQueryVertex implements Comparable<GraphQueryVertex> {
     }
 
     public void setMQuery(@NonNull MQuery mQuery) {
+        checkNotFrozen();
         this.mQuery = mQuery;
+        this.predicate = null;
+        this.typeConstraint = null;
+    }
+
+    /**
+     * Types any matching node must have, for picking candidate nodes.
+     */
+    @NonNull
+    public NodeTypeConstraint getTypeConstraint() {
+        if (typeConstraint == null)
+            typeConstraint = NodeTypeConstraint.of(mQuery);
+        return typeConstraint;
+    }
+
+    @NonNull
+    private NodePredicate getPredicate() {
+        if (predicate == null)
+            predicate = MQueryCompilerKt.compileNodePredicate(mQuery);
+        return predicate;
+    }
+
+    void freeze() {
+        getTypeConstraint();
+        getPredicate();
+        frozen = true;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen)
+            throw new IllegalStateException("Query is frozen");
     }
 
     @NonNull
@@ -61,6 +95,7 @@ public class GraphQueryVertex implements Comparable<GraphQueryVertex> {
 
 
     public void setName(@NonNull String name) {
+        checkNotFrozen();
         this.name = name;
     }
 
@@ -79,7 +114,7 @@ public class GraphQueryVertex implements Comparable<GraphQueryVertex> {
     }
 
     public boolean match(@NonNull AnalysisNode value) {
-        return mQuery.interpret(new QueryTargetNode(value));
+        return getPredicate().test(value);
     }
 
     @Override
@@ -1,5 +1,6 @@
 package il.ac.technion.cs.mipphd.graal.utils;
 
+import edu.umd.cs.findbugs.annotations.NonNull;
 import org.graalvm.compiler.graph.Node;
 import org.graalvm.compiler.graph.Position;
 import org.graalvm.compiler.nodeinfo.Verbosity;
@@ -12,6 +13,7 @@ import org.jgrapht.nio.dot.DOTExporter;
 
 import java.io.Writer;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -36,50 +38,73 @@ public class GraalIRGraph extends DirectedPseudograph<WrappedIRNodeImpl, Wrapped
 
     public static GraalIRGraph fromGraal(ControlFlowGraph cfg) {
         GraalIRGraph g = new GraalIRGraph();
+        Map<Node, WrappedIRNodeImpl> wrappers = new HashMap<>();
         for (Node n : cfg.graph.getNodes()) {
-            g.addVertex(new WrappedIRNodeImpl(n)); // does not add duplicates
+            WrappedIRNodeImpl wrapper = new WrappedIRNodeImpl(n);
+            wrappers.put(n, wrapper);
+            g.addVertex(wrapper);
         }
+        forEachEdge(cfg, (u, v, kind, label, phiSource) -> g.addEdge(wrappers.get(u), wrappers.get(v),
+                phiSource == null ? new WrappedIREdge(kind, label) : new WrappedIRPhiEdge(kind, label, wrappers.get(phiSource))));
+        return g;
+    }
+
+    /**
+     * Receives the edges of a Graal graph, as decided by {@link #forEachEdge(ControlFlowGraph, EdgeVisitor)}.
+     */
+    @FunctionalInterface
+    public interface EdgeVisitor {
+        /**
+         * @param kind One of {@link WrappedIREdge#DATA}, {@link WrappedIREdge#CONTROL} or {@link WrappedIREdge#ASSOCIATED}.
+         * @param phiSource For phi value edges, the end node the value flows from, otherwise null.
+         */
+        void edge(@NonNull Node source, @NonNull Node target, @NonNull String kind, @NonNull String label, Node phiSource);
+    }
+
+    /**
+     * Walk the nodes of the graph, reporting every edge of the analysis graph representation to the visitor.
+     * This is the single place where the edge rules live, so every graph representation gets the same edges.
+     */
+    public static void forEachEdge(ControlFlowGraph cfg, EdgeVisitor visitor) {
+        Map<AbstractMergeNode, List<Node>> mergeEnds = new HashMap<>();
         for (Node u : cfg.graph.getNodes()) {
             for (Node v : u.cfgSuccessors()) {
                 boolean success = false;
                 for (Position position : u.successorPositions()) {
                     if (null != position.get(u) && position.get(u).equals(v)) {
-                        g.addEdge(new WrappedIRNodeImpl(u), new WrappedIRNodeImpl(v), new WrappedIREdge(WrappedIREdge.CONTROL, position.getName()));
+                        visitor.edge(u, v, WrappedIREdge.CONTROL, position.getName(), null);
                         success = true;
                     }
                 }
                 // So far this case has always been an EndNode to its successor
                 if (!success)
-                    g.addEdge(new WrappedIRNodeImpl(u), new WrappedIRNodeImpl(v), new WrappedIREdge(WrappedIREdge.CONTROL, "next"));
+                    visitor.edge(u, v, WrappedIREdge.CONTROL, "next", null);
             }
             for (Node v : StreamSupport.stream(u.usages().spliterator(), false).distinct().toList()) {
                 boolean success = false;
                 for (Position position : v.inputPositions()) {
                     if (null != position.get(v) && position.get(v).equals(u)) {
                         if (position.getName().equals("loopBegin") && v instanceof LoopEndNode) {
-                            g.addEdge(new WrappedIRNodeImpl(v), new WrappedIRNodeImpl(u), new WrappedIREdge(WrappedIREdge.CONTROL, "next"));
-                            g.addEdge(new WrappedIRNodeImpl(u), new WrappedIRNodeImpl(v), new WrappedIREdge(WrappedIREdge.ASSOCIATED, position.getName()));
+                            visitor.edge(v, u, WrappedIREdge.CONTROL, "next", null);
+                            visitor.edge(u, v, WrappedIREdge.ASSOCIATED, position.getName(), null);
                         } else if (position.getName().equals("loopBegin") && v instanceof LoopExitNode) {
-                            g.addEdge(new WrappedIRNodeImpl(u), new WrappedIRNodeImpl(v), new WrappedIREdge(WrappedIREdge.ASSOCIATED, position.getName()));
+                            visitor.edge(u, v, WrappedIREdge.ASSOCIATED, position.getName(), null);
                         } else if (position.getName().equals("values") && v instanceof ValuePhiNode phi) {
-                            Node phiSource =
-                                    Stream.concat(StreamSupport.stream(phi.merge().inputs().spliterator(), false),
-                                                    StreamSupport.stream(phi.merge().usages().spliterator(), false))
-                                            .filter(n -> n instanceof LoopEndNode || n instanceof EndNode).toList()
-                                            .get(position.getSubIndex());
-                            g.addEdge(new WrappedIRNodeImpl(u), new WrappedIRNodeImpl(v), new WrappedIRPhiEdge(WrappedIREdge.DATA, "from " + phiSource.toString(Verbosity.Id), new WrappedIRNodeImpl(phiSource)));
+                            Node phiSource = mergeEnds.computeIfAbsent(phi.merge(), GraalIRGraph::endsOf)
+                                    .get(position.getSubIndex());
+                            visitor.edge(u, v, WrappedIREdge.DATA, "from " + phiSource.toString(Verbosity.Id), phiSource);
                         } else if (position.getName().equals("values") && v instanceof FrameState) {
                             /* Do nothing in this case, these edges are polluting the graph and I don't think I need them */
                             /* TODO: Maybe do add them? As a special type of edge can perhaps ignore? */
-                            g.addEdge(new WrappedIRNodeImpl(u), new WrappedIRNodeImpl(v), new WrappedIREdge(WrappedIREdge.ASSOCIATED, position.getName()));
+                            visitor.edge(u, v, WrappedIREdge.ASSOCIATED, position.getName(), null);
                         } else if (position.getName().equals("ends") && u instanceof EndNode) {
                             /* There already is a "next" edge, so we don't need this edge */
                         } else if ((position.getName().equals("stateAfter") && u instanceof FrameState) ||
                                 (position.getName().equals("merge") && v instanceof ValuePhiNode) ||
                                 (!position.getName().equals("value") && v instanceof ValueProxyNode)) {
-                            g.addEdge(new WrappedIRNodeImpl(u), new WrappedIRNodeImpl(v), new WrappedIREdge(WrappedIREdge.ASSOCIATED, position.getName()));
+                            visitor.edge(u, v, WrappedIREdge.ASSOCIATED, position.getName(), null);
                         } else {
-                            g.addEdge(new WrappedIRNodeImpl(u), new WrappedIRNodeImpl(v), new WrappedIREdge(WrappedIREdge.DATA, position.getName()));
+                            visitor.edge(u, v, WrappedIREdge.DATA, position.getName(), null);
                         }
                         success = true;
                     }
@@ -87,7 +112,15 @@ public class GraalIRGraph extends DirectedPseudograph<WrappedIRNodeImpl, Wrapped
                 assert (success); // TODO: Reasonable?
             }
         }
-        return g;
+    }
+
+    /**
+     * The ends of a merge, in the order of the values of its phis.
+     */
+    private static List<Node> endsOf(AbstractMergeNode merge) {
+        return Stream.concat(StreamSupport.stream(merge.inputs().spliterator(), false),
+                        StreamSupport.stream(merge.usages().spliterator(), false))
+                .filter(n -> n instanceof LoopEndNode || n instanceof EndNode).toList();
     }
 
     public void exportQuery(Writer output) {
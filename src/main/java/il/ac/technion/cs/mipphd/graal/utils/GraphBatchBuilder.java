@@ -0,0 +1,163 @@
+package il.ac.technion.cs.mipphd.graal.utils;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisGraph;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * Builds analysis graphs for many methods on a thread pool.
+ * <p>
+ * Results are streamed back in completion order, and a method that fails to build does not affect the others: its
+ * {@link Result} carries the error instead of a graph.
+ */
+public class GraphBatchBuilder implements AutoCloseable {
+    public record Result(@NonNull Method method, AnalysisGraph graph, Throwable error) {
+        public boolean isSuccess() {
+            return error == null;
+        }
+    }
+
+    @NonNull
+    private final Function<Method, AnalysisGraph> builder;
+    @NonNull
+    private final ExecutorService executor;
+
+    public GraphBatchBuilder() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public GraphBatchBuilder(int threads) {
+        this(new MethodToGraph(), threads);
+    }
+
+    public GraphBatchBuilder(@NonNull MethodToGraph methodToGraph, int threads) {
+        this(methodToGraph::getAnalysisGraph, threads);
+    }
+
+    /**
+     * @param builder Thread-safe graph builder, e.g. {@link MethodToGraph#getAnalysisGraph(Method)} or a cache.
+     * @param threads Number of worker threads.
+     */
+    public GraphBatchBuilder(@NonNull Function<Method, AnalysisGraph> builder, int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("threads must be positive, got " + threads);
+        this.builder = builder;
+        this.executor = Executors.newFixedThreadPool(threads, new WorkerFactory());
+    }
+
+    @NonNull
+    public Stream<Result> buildAll(@NonNull Collection<Method> methods) {
+        CompletionService<Result> completion = new ExecutorCompletionService<>(executor);
+        for (Method method : methods)
+            completion.submit(() -> build(method));
+        return Stream.generate(() -> take(completion)).limit(methods.size());
+    }
+
+    /**
+     * Build graphs for all concrete methods declared by the classes in a jar. Classes that can not be loaded (e.g.
+     * because of missing dependencies) are skipped.
+     * <p>
+     * The jar is loaded by its own class loader, which is closed once the last result has been consumed, or when the
+     * stream is closed. A stream that may not be consumed to the end (e.g. with {@code findFirst()}) should be closed,
+     * e.g. with try-with-resources.
+     */
+    @NonNull
+    public Stream<Result> buildJar(@NonNull Path jar) throws IOException {
+        URLClassLoader loader = new URLClassLoader(new URL[]{jar.toUri().toURL()}, getClass().getClassLoader());
+        List<Method> methods = new ArrayList<>();
+        try (JarFile jarFile = new JarFile(jar.toFile())) {
+            for (JarEntry entry : jarFile.stream().toList()) {
+                String name = entry.getName();
+                if (!name.endsWith(".class") || name.endsWith("module-info.class"))
+                    continue;
+                String className = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+                try {
+                    for (Method method : Class.forName(className, false, loader).getDeclaredMethods()) {
+                        if (!Modifier.isAbstract(method.getModifiers()) && !Modifier.isNative(method.getModifiers()))
+                            methods.add(method);
+                    }
+                } catch (ClassNotFoundException | LinkageError e) {
+                    // skip, see javadoc
+                }
+            }
+        } catch (IOException e) {
+            loader.close();
+            throw e;
+        }
+        // Closing an already closed loader has no effect
+        Runnable closeLoader = () -> {
+            try {
+                loader.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        if (methods.isEmpty())
+            closeLoader.run();
+        AtomicInteger remaining = new AtomicInteger(methods.size());
+        return buildAll(methods)
+                .peek(result -> {
+                    if (remaining.decrementAndGet() == 0)
+                        closeLoader.run();
+                })
+                .onClose(closeLoader);
+    }
+
+    @NonNull
+    private Result build(@NonNull Method method) {
+        try {
+            return new Result(method, builder.apply(method), null);
+        } catch (Throwable t) {
+            return new Result(method, null, t);
+        }
+    }
+
+    @NonNull
+    private static Result take(@NonNull CompletionService<Result> completion) {
+        try {
+            return completion.take().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for graphs", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unexpected failure in graph builder", e.getCause()); // build() catches all
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static class WorkerFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@NonNull Runnable r) {
+            Thread t = new Thread(r, "graph-builder-" + counter.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
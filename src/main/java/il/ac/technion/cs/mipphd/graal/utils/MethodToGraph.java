@@ -20,31 +20,50 @@ import org.graalvm.compiler.nodes.cfg.ControlFlowGraph;
 import org.graalvm.compiler.nodes.graphbuilderconf.GraphBuilderConfiguration;
 import org.graalvm.compiler.nodes.graphbuilderconf.InvocationPlugins;
 import org.graalvm.compiler.options.OptionValues;
+import org.graalvm.compiler.phases.BasePhase;
 import org.graalvm.compiler.phases.OptimisticOptimizations;
 import org.graalvm.compiler.phases.PhaseSuite;
+import org.graalvm.compiler.phases.common.CanonicalizerPhase;
+import org.graalvm.compiler.phases.common.DeadCodeEliminationPhase;
 import org.graalvm.compiler.phases.common.LoweringPhase;
+import org.graalvm.compiler.phases.common.inlining.InliningPhase;
 import org.graalvm.compiler.phases.tiers.HighTierContext;
 import org.graalvm.compiler.runtime.RuntimeProvider;
+import org.graalvm.compiler.virtual.phases.ea.PartialEscapePhase;
 
 import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class MethodToGraph {
     private final GraalRuntime runtime = initializeRuntime();
     private final OptionValues options = runtime.getCapability(OptionValues.class);
-    private final DebugContext context = (new DebugContext.Builder(options)).build();
-    private final StructuredGraph.Builder graphBuilder = new StructuredGraph.Builder(options, context);
+    /* DebugContext is not thread safe, so every thread building graphs gets its own */
+    private final ThreadLocal<DebugContext> context = ThreadLocal.withInitial(() -> (new DebugContext.Builder(options)).build());
     private final RuntimeProvider runtimeProvider = runtime.getCapability(RuntimeProvider.class);
     private final Backend backend = runtimeProvider.getHostBackend();
     private final MetaAccessProvider metaAccess = backend.getMetaAccess();
 
-    private boolean optimize = false;
+    private final GraphBuilderPhase.Instance parser = createParser();
+    private final HighTierContext highTierContext = new HighTierContext(backend.getProviders(),
+            backend.getSuites().getDefaultGraphBuilderSuite(), OptimisticOptimizations.NONE);
+    /* Each profile's suite is built once, on first use, and shared by all threads */
+    private final Map<PhaseProfile, PhaseSuite<HighTierContext>> suites = new ConcurrentHashMap<>();
+    private final Map<PhaseProfile, PhaseTimings> timings = new ConcurrentHashMap<>();
+
+    private volatile PhaseProfile profile;
 
     public MethodToGraph() {
         this(true);
     }
     public MethodToGraph(boolean optimize) {
-        this.optimize = optimize;
+        this(optimize ? PhaseProfile.HIGH_TIER : PhaseProfile.PARSE_ONLY);
+    }
+    public MethodToGraph(@NonNull PhaseProfile profile) {
+        this.profile = profile;
     }
 
     static private @NonNull GraalRuntime initializeRuntime() {
@@ -56,39 +75,92 @@ public class MethodToGraph {
     }
 
     public boolean isOptimize() {
-        return optimize;
+        return profile != PhaseProfile.PARSE_ONLY;
     }
 
     public void setOptimize(boolean optimize) {
-        this.optimize = optimize;
+        this.profile = optimize ? PhaseProfile.HIGH_TIER : PhaseProfile.PARSE_ONLY;
+    }
+
+    @NonNull
+    public PhaseProfile getProfile() {
+        return profile;
+    }
+
+    public void setProfile(@NonNull PhaseProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Time spent in each phase (including parsing, as "GraphBuilderPhase") by graphs built with the given profile.
+     */
+    @NonNull
+    public PhaseTimings getPhaseTimings(@NonNull PhaseProfile profile) {
+        return timings.computeIfAbsent(profile, p -> new PhaseTimings());
+    }
+
+    private @NonNull GraphBuilderPhase.Instance createParser() {
+        GraphBuilderConfiguration.Plugins gbcPlugins = new GraphBuilderConfiguration.Plugins(new InvocationPlugins());
+        GraphBuilderConfiguration graphBuilderConfiguration = GraphBuilderConfiguration.getDefault(gbcPlugins)
+                .withEagerResolving(true)
+                .withUnresolvedIsError(true)
+                .withNodeSourcePosition(true);
+        return new GraphBuilderPhase.Instance(backend.getProviders(), graphBuilderConfiguration, OptimisticOptimizations.NONE, null);
+    }
+
+    private @NonNull PhaseSuite<HighTierContext> createSuite(@NonNull PhaseProfile profile) {
+        PhaseSuite<HighTierContext> suite = new PhaseSuite<>();
+        CanonicalizerPhase canonicalizer = CanonicalizerPhase.create();
+        switch (profile) {
+            case PARSE_ONLY:
+                break;
+            case CANONICALIZE:
+                suite.appendPhase(canonicalizer);
+                suite.appendPhase(new DeadCodeEliminationPhase());
+                break;
+            case INLINE_PEA:
+                suite.appendPhase(canonicalizer);
+                suite.appendPhase(new InliningPhase(canonicalizer));
+                suite.appendPhase(new DeadCodeEliminationPhase());
+                suite.appendPhase(new PartialEscapePhase(true, canonicalizer, options));
+                break;
+            case HIGH_TIER:
+                suite = new CommunityCompilerConfiguration().createHighTier(options);
+                suite.removePhase(LoweringPhase.class);
+                break;
+        }
+        suite.setImmutable();
+        return suite;
     }
 
     protected @NonNull StructuredGraph getEmptyGraph(@NonNull ResolvedJavaMethod method) {
-        return graphBuilder
+        return new StructuredGraph.Builder(options, context.get())
                 .method(method)
                 .compilationId(backend.getCompilationIdentifier(method))
+                .recordInlinedMethods(true)
                 .build();
     }
 
     protected @NonNull StructuredGraph getGraph(@NonNull ResolvedJavaMethod method) {
+        return getGraph(method, profile);
+    }
+
+    protected @NonNull StructuredGraph getGraph(@NonNull ResolvedJavaMethod method, @NonNull PhaseProfile profile) {
+        final PhaseTimings phaseTimings = getPhaseTimings(profile);
         StructuredGraph graph = getEmptyGraph(method);
-        GraphBuilderConfiguration.Plugins gbcPlugins = new GraphBuilderConfiguration.Plugins(new InvocationPlugins());
-        GraphBuilderConfiguration graphBuilderConfiguration = GraphBuilderConfiguration.getDefault(gbcPlugins)
-                .withEagerResolving(true)
-                .withUnresolvedIsError(true)
-                .withNodeSourcePosition(true);
-        GraphBuilderPhase.Instance graphBuilder = new GraphBuilderPhase.Instance(backend.getProviders(), graphBuilderConfiguration, OptimisticOptimizations.NONE, null);
-        graphBuilder.apply(graph);
-        graph.maybeCompress();
 
-        if (optimize) {
-            PhaseSuite<HighTierContext> graphBuilderSuite = backend.getSuites().getDefaultGraphBuilderSuite();
-            CommunityCompilerConfiguration config = new CommunityCompilerConfiguration();
-            HighTierContext highTierContext = new HighTierContext(backend.getProviders(), graphBuilderSuite, OptimisticOptimizations.NONE);
+        long start = System.nanoTime();
+        parser.apply(graph);
+        phaseTimings.record(GraphBuilderPhase.class.getSimpleName(), System.nanoTime() - start);
+        graph.maybeCompress();
 
-            PhaseSuite<HighTierContext> tier = config.createHighTier(options);
-            tier.removePhase(LoweringPhase.class);
-            tier.apply(graph, highTierContext);
+        PhaseSuite<HighTierContext> suite = suites.computeIfAbsent(profile, this::createSuite);
+        if (!suite.getPhases().isEmpty()) {
+            for (BasePhase<? super HighTierContext> phase : suite.getPhases()) {
+                start = System.nanoTime();
+                phase.apply(graph, highTierContext);
+                phaseTimings.record(phase.getClass().getSimpleName(), System.nanoTime() - start);
+            }
             graph.maybeCompress();
         }
         return graph;
@@ -107,7 +179,11 @@ public class MethodToGraph {
     }
 
     private @NonNull CFGWrapper getCFG(ResolvedJavaMethod method) {
-        return new CFGWrapper(ControlFlowGraph.compute(getGraph(method), true, true, true, true));
+        return getCFG(method, profile);
+    }
+
+    private @NonNull CFGWrapper getCFG(ResolvedJavaMethod method, @NonNull PhaseProfile profile) {
+        return new CFGWrapper(ControlFlowGraph.compute(getGraph(method, profile), true, true, true, true));
     }
 
     public @NonNull CFGWrapper getCFGFromWrapper(@NonNull MethodWrapper method) {
@@ -123,11 +199,33 @@ public class MethodToGraph {
     }
 
     public @NonNull AnalysisGraph getAnalysisGraph(@NonNull CFGWrapper cfg) {
-        return AnalysisGraph.Companion.fromIR(getGraalIRGraph(cfg));
+        return AnalysisGraph.Companion.fromGraal(cfg.asCFG());
     }
 
     public @NonNull AnalysisGraph getAnalysisGraph(Method method) {
-        return getAnalysisGraph(getCFG(method));
+        return getAnalysisGraph(method, profile);
+    }
+
+    /**
+     * Build the graph with the given profile, regardless of the current one.
+     */
+    public @NonNull AnalysisGraph getAnalysisGraph(Method method, @NonNull PhaseProfile profile) {
+        return getAnalysisGraph(getCFG(lookupJavaMethod(method), profile));
+    }
+
+    /**
+     * Build the graph with the given profile, and add the names of the classes declaring the methods inlined into it
+     * to {@code inlinedClasses}.
+     */
+    public @NonNull AnalysisGraph getAnalysisGraph(Method method, @NonNull PhaseProfile profile,
+                                                   @NonNull Collection<String> inlinedClasses) {
+        StructuredGraph graph = getGraph(lookupJavaMethod(method), profile);
+        List<ResolvedJavaMethod> inlined = graph.getMethods();
+        if (inlined != null)
+            for (ResolvedJavaMethod m : inlined)
+                if (!m.getDeclaringClass().isArray()) // Array methods have no class file
+                    inlinedClasses.add(m.getDeclaringClass().toJavaName());
+        return getAnalysisGraph(new CFGWrapper(ControlFlowGraph.compute(graph, true, true, true, true)));
     }
 
     public void printCFG(@NonNull ControlFlowGraph cfg) {
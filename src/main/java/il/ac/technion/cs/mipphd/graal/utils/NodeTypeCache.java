@@ -0,0 +1,107 @@
+package il.ac.technion.cs.mipphd.graal.utils;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide cache behind {@link WrappedIRNodeImpl#isType(String)}.
+ * <p>
+ * Type names (e.g. "AddNode" or "calc.AddNode", relative to the Graal nodes package) are resolved to the classes they
+ * may refer to once, and the answer for each node class is shared by all nodes of that class, so repeated checks cost
+ * two hash lookups whether they succeed or not.
+ */
+public final class NodeTypeCache {
+    private static final String BASE_PACKAGE = "org.graalvm.compiler.nodes";
+
+    private static final Map<String, List<Class<?>>> classes = new ConcurrentHashMap<>();
+    private static final ClassValue<Map<String, Boolean>> membership = new ClassValue<>() {
+        @Override
+        protected Map<String, Boolean> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+    private static final Map<List<String>, Map<String, Boolean>> namedMembership = new ConcurrentHashMap<>();
+
+    private NodeTypeCache() {
+    }
+
+    public static boolean isType(@NonNull Class<?> nodeClass, @NonNull String name) {
+        Map<String, Boolean> known = membership.get(nodeClass);
+        Boolean result = known.get(name);
+        if (result == null) {
+            result = resolve(name).stream().anyMatch(c -> c.isAssignableFrom(nodeClass));
+            known.put(name, result);
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #isType(Class, String)}, for a node known only by the qualified names of its Graal node (super)types,
+     * e.g. one loaded by {@link AnalysisGraphCache}.
+     */
+    public static boolean isType(@NonNull List<String> typeNames, @NonNull String name) {
+        Map<String, Boolean> known = namedMembership.computeIfAbsent(typeNames, names -> {
+            // Lookup only goes through loaded packages, and nothing may have loaded these yet
+            names.forEach(NodeTypeCache::load);
+            return new ConcurrentHashMap<>();
+        });
+        Boolean result = known.get(name);
+        if (result == null) {
+            result = resolve(name).stream().anyMatch(c -> typeNames.contains(c.getName()));
+            known.put(name, result);
+        }
+        return result;
+    }
+
+    /**
+     * The classes a type name may refer to, in any of the loaded Graal node packages.
+     *
+     * @throws RuntimeException if there is no such class.
+     */
+    @NonNull
+    public static List<Class<?>> resolve(@NonNull String name) {
+        List<Class<?>> resolved = classes.get(name);
+        if (resolved == null) {
+            resolved = lookup(name);
+            // Not cached when missing, the class may be in a package that isn't loaded yet
+            if (resolved.isEmpty())
+                throw new RuntimeException("No such class " + name);
+            classes.putIfAbsent(name, resolved);
+        }
+        return resolved;
+    }
+
+    @NonNull
+    private static List<Class<?>> lookup(@NonNull String name) {
+        List<Class<?>> found = new ArrayList<>();
+        List<String> candidates = new ArrayList<>();
+        if (name.startsWith(BASE_PACKAGE + "."))
+            candidates.add(name);
+        // https://stackoverflow.com/questions/15893174/list-all-subpackages-of-a-package
+        Arrays.stream(Package.getPackages())
+                .map(Package::getName)
+                .filter(p -> p.startsWith(BASE_PACKAGE))
+                .forEach(p -> candidates.add(p + "." + name));
+        for (String candidate : candidates) {
+            try {
+                found.add(Class.forName(candidate));
+            } catch (ClassNotFoundException e) {
+                // ignore
+            }
+        }
+        return found;
+    }
+
+    private static void load(@NonNull String className) {
+        try {
+            Class.forName(className, false, NodeTypeCache.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package il.ac.technion.cs.mipphd.graal.utils;
+
+/**
+ * Named Graal phase pipelines that {@link MethodToGraph} can run after parsing a method, from cheapest to most
+ * thorough.
+ */
+public enum PhaseProfile {
+    /** Bytecode parsing only */
+    PARSE_ONLY,
+    /** Canonicalization and dead code elimination */
+    CANONICALIZE,
+    /** Inlining followed by partial escape analysis */
+    INLINE_PEA,
+    /** The full high tier, without lowering */
+    HIGH_TIER
+}
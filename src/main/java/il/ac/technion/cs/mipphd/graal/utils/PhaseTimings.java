@@ -0,0 +1,44 @@
+package il.ac.technion.cs.mipphd.graal.utils;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulated run time of each phase, shared by all threads using the same {@link PhaseProfile}.
+ */
+public class PhaseTimings {
+    private final Map<String, LongAdder> nanos = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> runs = new ConcurrentHashMap<>();
+
+    void record(@NonNull String phase, long elapsedNanos) {
+        nanos.computeIfAbsent(phase, p -> new LongAdder()).add(elapsedNanos);
+        runs.computeIfAbsent(phase, p -> new LongAdder()).increment();
+    }
+
+    @NonNull
+    public Map<String, Duration> getTotalTimes() {
+        Map<String, Duration> ret = new LinkedHashMap<>();
+        nanos.forEach((phase, total) -> ret.put(phase, Duration.ofNanos(total.sum())));
+        return ret;
+    }
+
+    public long getRuns(@NonNull String phase) {
+        LongAdder count = runs.get(phase);
+        return count == null ? 0 : count.sum();
+    }
+
+    public void reset() {
+        nanos.clear();
+        runs.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "PhaseTimings" + getTotalTimes();
+    }
+}
@@ -7,13 +7,7 @@ import org.graalvm.compiler.graph.Node;
 import org.graalvm.compiler.nodeinfo.Verbosity;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-
 public class WrappedIRNodeImpl implements WrappedIRNode {
-    Set<String> memoized = new HashSet<>();
     private final Node node;
 
     public WrappedIRNodeImpl(Node node) {
@@ -53,32 +47,7 @@ public class WrappedIRNodeImpl implements WrappedIRNode {
     }
 
     public Boolean isType(String className) {
-        if (memoized.contains(className))
-            return true;
-        boolean foundClass = false;
-        String basePackage = "org.graalvm.compiler.nodes";
-        // https://stackoverflow.com/questions/15893174/list-all-subpackages-of-a-package
-        List<Package> packages = Arrays.stream(Package.getPackages())
-                .filter(p -> p.getName().startsWith(basePackage))
-                .toList();
-        for (Package p : packages) {
-            try {
-                Class<?> clazz = Class.forName(p.getName() + "." + className);
-                foundClass = true;
-                if (clazz.isAssignableFrom(node.getClass())) {
-                    memoized.add(className);
-                    return true;
-                }
-            } catch (ClassNotFoundException e) {
-                // ignore
-            }
-
-        }
-        if (!foundClass) {
-            // TODO: Do nothing instead?
-            throw new RuntimeException("No such class " + className);
-        }
-        return false;
+        return NodeTypeCache.isType(node.getClass(), className);
     }
 
     public String getId() {
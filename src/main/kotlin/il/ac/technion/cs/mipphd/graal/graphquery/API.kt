@@ -13,16 +13,12 @@ fun compileAndQuery(g: GraalIRGraph, q: String): String {
 
     val qParsed = GraphQuery.importQuery(q)
 
-    val matches = qParsed.match(g)
-    val results = matches
-        .stream()
-        .map {
-            it.entries
-                .map { (qV, gVs) -> Pair(qV.name, gVs.map(AnalysisNode::toString)) }
-        }
+    val table = qParsed.matchTable(AnalysisGraph.fromIR(g))
     return json { obj(
         "graph" to mGraph,
-        "queryResults" to array(results.map { obj(it.map { (qV, gVs) -> qV to array(gVs) }) }.toList()),
+        "queryResults" to array(table.indices.map { row ->
+            obj(table.vertices.map { qV -> qV.name to array(table.nodesOf(row, qV).map(AnalysisNode::toString)) })
+        }),
         "queryVertices" to obj(qParsed.vertexSet().map { v -> v.name to v.captureGroup().orElse("") }))
     }.toJsonString()
 }
\ No newline at end of file
@@ -26,7 +26,7 @@ sealed class AnalysisEdge private constructor(val label: String) : DefaultEdge()
     /**
      * Data edge (phi case)
      */
-    class Phi(label: String, val from : AnalysisNode.IR) : Data(label)
+    class Phi(label: String, val from : AnalysisNode) : Data(label)
 
     /**
      * Control edge
@@ -52,6 +52,18 @@ sealed class AnalysisEdge private constructor(val label: String) : DefaultEdge()
 
     // This is redundant, but making it explicit
     override fun hashCode() = super.hashCode()
+
+    /**
+     * Source jgrapht stored in the edge when it was added to a graph, if it was.
+     */
+    internal val sourceNode: AnalysisNode?
+        get() = getSource() as AnalysisNode?
+
+    /**
+     * Target jgrapht stored in the edge when it was added to a graph, if it was.
+     */
+    internal val targetNode: AnalysisNode?
+        get() = getTarget() as AnalysisNode?
 }
 
 fun AnalysisEdge.baseType(): String = when (this) {
@@ -60,4 +72,25 @@ fun AnalysisEdge.baseType(): String = when (this) {
     is AnalysisEdge.Control -> "control"
     is AnalysisEdge.Default -> "default"
     is AnalysisEdge.Extra -> "other"
-}
\ No newline at end of file
+}
+/**
+ * Kind of an analysis edge, telling the phi and non-phi data edges apart.
+ */
+enum class EdgeKind {
+    CONTROL,
+    DATA,
+    PHI,
+    ASSOCIATION,
+    EXTRA,
+    DEFAULT
+}
+
+val AnalysisEdge.kind: EdgeKind
+    get() = when (this) {
+        is AnalysisEdge.PureData -> EdgeKind.DATA
+        is AnalysisEdge.Phi -> EdgeKind.PHI
+        is AnalysisEdge.Control -> EdgeKind.CONTROL
+        is AnalysisEdge.Association -> EdgeKind.ASSOCIATION
+        is AnalysisEdge.Extra -> EdgeKind.EXTRA
+        is AnalysisEdge.Default -> EdgeKind.DEFAULT
+    }
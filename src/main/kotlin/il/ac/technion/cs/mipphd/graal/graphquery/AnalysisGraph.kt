@@ -1,9 +1,13 @@
 package il.ac.technion.cs.mipphd.graal.graphquery
 
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.PlanCache
 import il.ac.technion.cs.mipphd.graal.utils.GraalIRGraph
 import il.ac.technion.cs.mipphd.graal.utils.SouffleExporter
 import il.ac.technion.cs.mipphd.graal.utils.WrappedIREdge
+import il.ac.technion.cs.mipphd.graal.utils.WrappedIRNodeImpl
 import il.ac.technion.cs.mipphd.graal.utils.WrappedIRPhiEdge
+import org.graalvm.compiler.graph.Node
+import org.graalvm.compiler.nodes.cfg.ControlFlowGraph
 import org.jgrapht.graph.DirectedPseudograph
 import org.jgrapht.nio.DefaultAttribute.createAttribute
 import org.jgrapht.nio.dot.DOTExporter
@@ -11,7 +15,60 @@ import java.io.StringWriter
 import java.io.Writer
 
 open class AnalysisGraph :
-    DirectedPseudograph<AnalysisNode, AnalysisEdge>({ AnalysisNode.Default }, { AnalysisEdge.Default }, false) {
+    DirectedPseudograph<AnalysisNode, AnalysisEdge>({ AnalysisNode.Default }, { AnalysisEdge.Default }, false),
+    AnalysisGraphView {
+    /* Indexes aren't unique across node kinds (IR node ids and Specific counters may collide), so findNode returns
+     * the earliest added vertex with that index, like a scan of vertexSet() would, and the others wait in line. */
+    private val nodesByIndex = HashMap<UInt, AnalysisNode>()
+    private val shadowedByIndex = HashMap<UInt, ArrayList<AnalysisNode>>()
+
+    /* Vertex to the instance actually stored, equal Specific data class instances don't necessarily share an index */
+    private val storedVertices = HashMap<AnalysisNode, AnalysisNode>()
+
+    private val typeIndex = NodeTypeIndex()
+    private val edgeHistogram = EdgeHistogram()
+
+    /* Bumped on every change */
+    @Volatile
+    private var modifications = 0L
+
+    override val version: Long
+        get() = modifications
+
+    override val plans = PlanCache()
+
+    /**
+     * Memoized vertex predicates, once enabled with [cachePredicates].
+     */
+    var predicateCache: PredicateCache? = null
+        private set
+
+    /* Any change may change reachability, so this is cleared on every change */
+    private val reachability = ReachabilityCache()
+
+    /* Incident edges of each vertex, bucketed by kind and by label */
+    private val incoming = HashMap<AnalysisNode, Incidence>()
+    private val outgoing = HashMap<AnalysisNode, Incidence>()
+
+    private class Incidence {
+        private val byKind = arrayOfNulls<LinkedHashSet<AnalysisEdge>>(EdgeKind.values().size)
+        private val byLabel = HashMap<String, LinkedHashSet<AnalysisEdge>>()
+
+        fun add(edge: AnalysisEdge) {
+            (byKind[edge.kind.ordinal] ?: LinkedHashSet<AnalysisEdge>().also { byKind[edge.kind.ordinal] = it }).add(edge)
+            byLabel.getOrPut(edge.label) { LinkedHashSet() }.add(edge)
+        }
+
+        fun remove(edge: AnalysisEdge) {
+            byKind[edge.kind.ordinal]?.remove(edge)
+            byLabel[edge.label]?.let { if (it.remove(edge) && it.isEmpty()) byLabel.remove(edge.label) }
+        }
+
+        fun ofKind(kind: EdgeKind): Set<AnalysisEdge> = byKind[kind.ordinal] ?: emptySet()
+
+        fun withLabel(label: String): Set<AnalysisEdge> = byLabel[label] ?: emptySet()
+    }
+
     private val exporter: DOTExporter<AnalysisNode, AnalysisEdge> =
         DOTExporter<AnalysisNode, AnalysisEdge> { it.nodeName }.also { exporter ->
             exporter.setVertexAttributeProvider {
@@ -28,6 +85,15 @@ open class AnalysisGraph :
                                 else -> ""
                             }
 
+                            is AnalysisNode.Cached -> when {
+                                it.isMerge -> "diamond"
+                                it.isStart -> "house"
+                                it.isReturn -> "invhouse"
+                                it.isControl -> "box"
+                                it.isData -> "ellipse"
+                                else -> ""
+                            }
+
                             is AnalysisNode.Specific -> "note"
                             is AnalysisNode.Default -> "star"
                         }
@@ -35,6 +101,7 @@ open class AnalysisGraph :
                     "root" to createAttribute(
                         when (it) {
                             is AnalysisNode.IR -> if (it.isStart) "true" else "false"
+                            is AnalysisNode.Cached -> if (it.isStart) "true" else "false"
                             else -> "false"
                         }
                     )
@@ -69,19 +136,46 @@ open class AnalysisGraph :
         }
 
     companion object {
+        /**
+         * Build the analysis graph straight from the Graal graph, with the same edges as
+         * `fromIR(GraalIRGraph.fromGraal(cfg))` but without building (and throwing away) the intermediate graph.
+         */
+        fun fromGraal(cfg: ControlFlowGraph): AnalysisGraph {
+            val g = AnalysisGraph()
+            val nodes = HashMap<Node, AnalysisNode.IR>()
+            for (node in cfg.graph.nodes) {
+                val vertex = AnalysisNode.IR(WrappedIRNodeImpl(node))
+                nodes[node] = vertex
+                g.addVertex(vertex)
+            }
+            GraalIRGraph.forEachEdge(cfg) { source, target, kind, label, phiSource ->
+                val edge = when (kind) {
+                    WrappedIREdge.DATA -> if (phiSource != null)
+                        AnalysisEdge.Phi(label, nodes.getValue(phiSource))
+                    else
+                        AnalysisEdge.PureData(label)
+
+                    WrappedIREdge.CONTROL -> AnalysisEdge.Control(label)
+                    WrappedIREdge.ASSOCIATED -> AnalysisEdge.Association(label)
+                    else -> throw IllegalArgumentException("Unexpected edge kind $kind")
+                }
+                g.addEdge(nodes.getValue(source), nodes.getValue(target), edge)
+            }
+            return g
+        }
+
         fun fromIR(graal: GraalIRGraph): AnalysisGraph {
             val g = AnalysisGraph()
+            val nodes = HashMap<WrappedIRNodeImpl, AnalysisNode.IR>()
             for (node in graal.vertexSet()) {
-                g.addVertex(AnalysisNode.IR(node))
+                val vertex = AnalysisNode.IR(node)
+                nodes[node] = vertex
+                g.addVertex(vertex)
             }
             for (irEdge in graal.edgeSet()) {
                 val edge = when (irEdge.kind) {
                     WrappedIREdge.DATA -> if (irEdge is WrappedIRPhiEdge)
-                        AnalysisEdge.Phi(
-                            irEdge.label,
-                            g.vertexSet().filterIsInstance<AnalysisNode.IR>()
-                                .find { it.node() == irEdge.from.node() }!!
-                        )
+                        AnalysisEdge.Phi(irEdge.label, nodes.getValue(irEdge.from))
                     else
                         AnalysisEdge.PureData(irEdge.label)
 
@@ -90,8 +184,8 @@ open class AnalysisGraph :
                     else -> throw IllegalArgumentException("Unexpected $irEdge of type ${irEdge.javaClass}")
                 }
                 g.addEdge(
-                    AnalysisNode.IR(graal.getEdgeSource(irEdge)),
-                    AnalysisNode.IR(graal.getEdgeTarget(irEdge)),
+                    nodes.getValue(graal.getEdgeSource(irEdge)),
+                    nodes.getValue(graal.getEdgeTarget(irEdge)),
                     edge
                 )
             }
@@ -194,11 +288,83 @@ open class AnalysisGraph :
             .toList())
     }
 
-    fun inControlDegreeOf(vertex: AnalysisNode): Int =
-        incomingEdgesOf(vertex).asSequence().filterIsInstance<AnalysisEdge.Control>().count()
+    fun inControlDegreeOf(vertex: AnalysisNode): Int = inDegreeOf(vertex, EdgeKind.CONTROL)
+
+    fun outControlDegreeOf(vertex: AnalysisNode): Int = outDegreeOf(vertex, EdgeKind.CONTROL)
+
+    override fun inDegreeOf(vertex: AnalysisNode, kind: EdgeKind): Int = incomingEdgesOf(vertex, kind).size
+
+    override fun outDegreeOf(vertex: AnalysisNode, kind: EdgeKind): Int = outgoingEdgesOf(vertex, kind).size
+
+    override fun incomingEdgesOf(vertex: AnalysisNode, kind: EdgeKind): Set<AnalysisEdge> =
+        incidence(incoming, vertex)?.ofKind(kind) ?: emptySet()
 
-    fun outControlDegreeOf(vertex: AnalysisNode): Int =
-        outgoingEdgesOf(vertex).asSequence().filterIsInstance<AnalysisEdge.Control>().count()
+    override fun outgoingEdgesOf(vertex: AnalysisNode, kind: EdgeKind): Set<AnalysisEdge> =
+        incidence(outgoing, vertex)?.ofKind(kind) ?: emptySet()
+
+    override fun incomingEdgesOf(vertex: AnalysisNode, label: String): Set<AnalysisEdge> =
+        incidence(incoming, vertex)?.withLabel(label) ?: emptySet()
+
+    override fun outgoingEdgesOf(vertex: AnalysisNode, label: String): Set<AnalysisEdge> =
+        incidence(outgoing, vertex)?.withLabel(label) ?: emptySet()
+
+    override fun incomingEdgesOf(vertex: AnalysisNode, constraint: EdgeConstraint): Collection<AnalysisEdge> =
+        candidateEdges(incoming, vertex, constraint) { incomingEdgesOf(vertex) }
+
+    override fun outgoingEdgesOf(vertex: AnalysisNode, constraint: EdgeConstraint): Collection<AnalysisEdge> =
+        candidateEdges(outgoing, vertex, constraint) { outgoingEdgesOf(vertex) }
+
+    override fun verticesOfType(constraint: NodeTypeConstraint): Collection<AnalysisNode> =
+        typeIndex.verticesOfType(constraint, vertexSet()) ?: vertexSet()
+
+    override fun vertexCountOfType(constraint: NodeTypeConstraint): Int =
+        typeIndex.countOfType(constraint) ?: vertexSet().size
+
+    override fun edgeCount(constraint: EdgeConstraint): Int = edgeHistogram.count(constraint)
+
+    /**
+     * Frozen compact copy of the graph, see [AnalysisGraphSnapshot].
+     */
+    fun snapshot(): AnalysisGraphSnapshot = AnalysisGraphSnapshot.of(this)
+
+    /**
+     * Memoize the results of vertex predicates on this graph from now on.
+     */
+    fun cachePredicates(): PredicateCache =
+        predicateCache ?: PredicateCache(vertexSet()).also { predicateCache = it }
+
+    override fun matches(queryV: GraphQueryVertex, node: AnalysisNode): Boolean =
+        predicateCache?.test(queryV, node) ?: queryV.match(node)
+
+    override fun reachableFrom(source: AnalysisNode, queryE: GraphQueryEdge, queryW: GraphQueryVertex): Reachability =
+        reachability.get(this, source, queryE, queryW, true)
+
+    override fun reachableTo(target: AnalysisNode, queryE: GraphQueryEdge, queryW: GraphQueryVertex): Reachability =
+        reachability.get(this, target, queryE, queryW, false)
+
+    private fun incidence(incidences: Map<AnalysisNode, Incidence>, vertex: AnalysisNode): Incidence? {
+        assertVertexExist(vertex)
+        return incidences[vertex]
+    }
+
+    private inline fun candidateEdges(
+        incidences: Map<AnalysisNode, Incidence>,
+        vertex: AnalysisNode,
+        constraint: EdgeConstraint,
+        all: () -> Set<AnalysisEdge>
+    ): Collection<AnalysisEdge> {
+        val incidence = incidence(incidences, vertex) ?: return emptySet()
+        val kinds = constraint.kinds
+        return when {
+            constraint.label != null -> incidence.withLabel(constraint.label).let { edges ->
+                if (kinds == null) edges else edges.filter { it.kind in kinds }
+            }
+
+            kinds == null -> all()
+            kinds.size == 1 -> incidence.ofKind(kinds.first())
+            else -> kinds.flatMap(incidence::ofKind)
+        }
+    }
 
     fun removeLeaves() {
         removeAllVerticesBackwards(vertexSet().asSequence()
@@ -218,6 +384,83 @@ open class AnalysisGraph :
         assert(vertexSet().find { it is AnalysisNode.IR && it.isReturn } != null)
     }
 
-    // TODO: Add a mapping?
-    fun findNode(index: UInt) : AnalysisNode? = vertexSet().find { it.index == index }
+    override fun findNode(index: UInt): AnalysisNode? = nodesByIndex[index]
+
+    override fun addVertex(): AnalysisNode = super.addVertex().also(::indexVertex)
+
+    override fun addVertex(v: AnalysisNode): Boolean {
+        if (!super.addVertex(v))
+            return false
+        indexVertex(v)
+        return true
+    }
+
+    override fun addEdge(sourceVertex: AnalysisNode, targetVertex: AnalysisNode): AnalysisEdge? =
+        super.addEdge(sourceVertex, targetVertex)?.also { indexEdge(sourceVertex, targetVertex, it) }
+
+    override fun addEdge(sourceVertex: AnalysisNode, targetVertex: AnalysisNode, e: AnalysisEdge): Boolean {
+        if (!super.addEdge(sourceVertex, targetVertex, e))
+            return false
+        indexEdge(sourceVertex, targetVertex, e)
+        return true
+    }
+
+    override fun removeEdge(sourceVertex: AnalysisNode, targetVertex: AnalysisNode): AnalysisEdge? =
+        getEdge(sourceVertex, targetVertex)?.also { removeEdge(it) }
+
+    override fun removeEdge(e: AnalysisEdge): Boolean {
+        if (!containsEdge(e))
+            return false
+        val source = getEdgeSource(e)
+        val target = getEdgeTarget(e)
+        super.removeEdge(e)
+        outgoing[source]?.remove(e)
+        incoming[target]?.remove(e)
+        edgeHistogram.remove(e)
+        reachability.clear()
+        modifications++
+        return true
+    }
+
+    private fun indexEdge(sourceVertex: AnalysisNode, targetVertex: AnalysisNode, e: AnalysisEdge) {
+        outgoing.getOrPut(sourceVertex) { Incidence() }.add(e)
+        incoming.getOrPut(targetVertex) { Incidence() }.add(e)
+        edgeHistogram.add(e)
+        reachability.clear()
+        modifications++
+    }
+
+    override fun removeVertex(v: AnalysisNode): Boolean {
+        if (!super.removeVertex(v))
+            return false
+        incoming.remove(v)
+        outgoing.remove(v)
+        val stored = storedVertices.remove(v)!!
+        typeIndex.remove(stored)
+        predicateCache?.nodeRemoved(stored)
+        reachability.clear()
+        modifications++
+        val index = stored.index
+        val shadowed = shadowedByIndex[index]
+        if (nodesByIndex[index] === stored) {
+            if (shadowed == null)
+                nodesByIndex.remove(index)
+            else
+                nodesByIndex[index] = shadowed.removeFirst()
+        } else {
+            shadowed!!.removeIf { it === stored }
+        }
+        if (shadowed != null && shadowed.isEmpty())
+            shadowedByIndex.remove(index)
+        return true
+    }
+
+    private fun indexVertex(v: AnalysisNode) {
+        storedVertices[v] = v
+        typeIndex.add(v)
+        predicateCache?.nodeAdded(v)
+        modifications++
+        if (nodesByIndex.putIfAbsent(v.index, v) != null)
+            shadowedByIndex.getOrPut(v.index) { ArrayList() }.add(v)
+    }
 }
\ No newline at end of file
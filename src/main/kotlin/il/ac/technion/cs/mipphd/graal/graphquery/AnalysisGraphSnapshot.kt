@@ -0,0 +1,375 @@
+package il.ac.technion.cs.mipphd.graal.graphquery
+
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.PlanCache
+import org.jgrapht.Graph
+import org.jgrapht.GraphType
+import org.jgrapht.graph.AbstractGraph
+import org.jgrapht.graph.DefaultGraphType
+import java.util.function.Supplier
+
+/**
+ * Frozen, compact copy of an analysis graph, for analyses that don't mutate the graph.
+ *
+ * Vertices and edges get dense int ids, and the incident edges of every vertex are kept in CSR form: one int array
+ * of edge ids per direction, grouped by vertex and then by [EdgeKind], with an offsets array pointing at each group.
+ * Edge targets and label ids are int arrays indexed by edge id, and the [AnalysisNode]s and [AnalysisEdge]s are only
+ * kept in side arrays, to be handed back to callers.
+ *
+ * There are no per-object maps: a vertex is found by binary search over the vertex ids sorted by node index, and the
+ * endpoints of an edge are the ones jgrapht stored in it when it was added to the original graph. Edge sets are views
+ * over the id arrays, filtered on the fly, so looking edges up never allocates more than the view itself.
+ *
+ * All the mutating [Graph] methods throw [UnsupportedOperationException].
+ */
+class AnalysisGraphSnapshot private constructor(
+    private val vertices: Array<AnalysisNode>,
+    private val edges: Array<AnalysisEdge>,
+    private val edgeTargets: IntArray,
+    private val edgeLabels: IntArray,
+    private val labelIds: Map<String, Int>,
+    private val outOffsets: IntArray,
+    private val outEdges: IntArray,
+    private val inOffsets: IntArray,
+    private val inEdges: IntArray,
+    /* Vertex ids sorted (stably) by node index, and the node index of each as raw bits */
+    private val byIndex: IntArray,
+    private val sortedIndices: IntArray,
+) : AbstractGraph<AnalysisNode, AnalysisEdge>(), AnalysisGraphView {
+    companion object {
+        private val KINDS = EdgeKind.values().size
+        private const val ALL_KINDS = -1
+
+        /**
+         * Snapshot of [graph]. Its edges must not also be in a graph where they have other endpoints.
+         */
+        @JvmStatic
+        fun of(graph: Graph<AnalysisNode, AnalysisEdge>): AnalysisGraphSnapshot {
+            val vertices = graph.vertexSet().toTypedArray()
+            val vertexIds = HashMap<AnalysisNode, Int>(vertices.size * 2)
+            vertices.forEachIndexed { i, v -> vertexIds[v] = i }
+
+            val edges = graph.edgeSet().toTypedArray()
+            val sources = IntArray(edges.size)
+            val targets = IntArray(edges.size)
+            val kinds = IntArray(edges.size)
+            val labels = IntArray(edges.size)
+            val labelIds = HashMap<String, Int>()
+            for ((i, e) in edges.withIndex()) {
+                val source = graph.getEdgeSource(e)
+                val target = graph.getEdgeTarget(e)
+                require(e.sourceNode === source && e.targetNode === target) { "$e has other endpoints in another graph" }
+                sources[i] = vertexIds.getValue(source)
+                targets[i] = vertexIds.getValue(target)
+                kinds[i] = e.kind.ordinal
+                labels[i] = labelIds.getOrPut(e.label) { labelIds.size }
+            }
+
+            val (outOffsets, outEdges) = csr(vertices.size, sources, kinds)
+            val (inOffsets, inEdges) = csr(vertices.size, targets, kinds)
+            val byIndex = vertices.indices.sortedBy { vertices[it].index }.toIntArray()
+            val sortedIndices = IntArray(byIndex.size) { vertices[byIndex[it]].index.toInt() }
+            return AnalysisGraphSnapshot(
+                vertices, edges, targets, labels, labelIds, outOffsets, outEdges, inOffsets, inEdges,
+                byIndex, sortedIndices
+            )
+        }
+
+        /* Counting sort of the edge ids by (endpoint, kind), stable so each group keeps the original edge order */
+        private fun csr(vertexCount: Int, endpoints: IntArray, kinds: IntArray): Pair<IntArray, IntArray> {
+            val offsets = IntArray(vertexCount * KINDS + 1)
+            for (e in endpoints.indices)
+                offsets[endpoints[e] * KINDS + kinds[e] + 1]++
+            for (i in 1 until offsets.size)
+                offsets[i] += offsets[i - 1]
+            val next = offsets.copyOf(offsets.size - 1)
+            val ids = IntArray(endpoints.size)
+            for (e in endpoints.indices)
+                ids[next[endpoints[e] * KINDS + kinds[e]]++] = e
+            return Pair(offsets, ids)
+        }
+
+        private fun kindMask(kinds: Set<EdgeKind>): Int = kinds.fold(0) { mask, kind -> mask or (1 shl kind.ordinal) }
+    }
+
+    private val typeIndex = NodeTypeIndex().also { index -> vertices.forEach(index::add) }
+    private val edgeHistogram = EdgeHistogram().also { histogram -> edges.forEach(histogram::add) }
+
+    /* Never changes */
+    override val version: Long
+        get() = 0
+
+    override val plans = PlanCache()
+    private val reachability = ReachabilityCache()
+
+    /**
+     * Read-only set of the edges of [vertex] in [ids] (incoming or outgoing, as given by [offsets]), in the groups of
+     * kinds [firstKind] to [lastKind]. Edges can be further restricted to the kinds in [kindMask], to a label id,
+     * to a target vertex id, or to the ones that aren't self loops.
+     */
+    private inner class EdgeIdSet(
+        private val offsets: IntArray,
+        private val ids: IntArray,
+        private val vertex: Int,
+        private val firstKind: Int = 0,
+        private val lastKind: Int = KINDS - 1,
+        private val kindMask: Int = ALL_KINDS,
+        private val label: Int = -1,
+        private val target: Int = -1,
+        private val skipSelfLoops: Boolean = false,
+    ) : AbstractSet<AnalysisEdge>() {
+        private val from = offsets[vertex * KINDS + firstKind]
+        private val to = offsets[vertex * KINDS + lastKind + 1]
+        private val filtered = kindMask != ALL_KINDS || label >= 0 || target >= 0 || skipSelfLoops
+        private var count = -1
+
+        private fun accepts(id: Int): Boolean =
+            (kindMask == ALL_KINDS || kindMask and (1 shl edges[id].kind.ordinal) != 0) &&
+                    (label < 0 || edgeLabels[id] == label) &&
+                    (target < 0 || edgeTargets[id] == target) &&
+                    (!skipSelfLoops || edgeTargets[id] != vertex)
+
+        override val size: Int
+            get() {
+                if (!filtered)
+                    return to - from
+                if (count < 0)
+                    count = (from until to).count { accepts(ids[it]) }
+                return count
+            }
+
+        override fun iterator(): Iterator<AnalysisEdge> = object : Iterator<AnalysisEdge> {
+            private var i = skip(from)
+
+            private fun skip(position: Int): Int {
+                var p = position
+                while (filtered && p < to && !accepts(ids[p]))
+                    p++
+                return p
+            }
+
+            override fun hasNext() = i < to
+            override fun next(): AnalysisEdge {
+                if (i >= to)
+                    throw NoSuchElementException()
+                val edge = edges[ids[i]]
+                i = skip(i + 1)
+                return edge
+            }
+        }
+
+        /* Only scans the group of the element's kind */
+        override fun contains(element: AnalysisEdge): Boolean {
+            val kind = element.kind.ordinal
+            if (kind < firstKind || kind > lastKind)
+                return false
+            val id = findInGroup(offsets, ids, vertex, element)
+            return id >= 0 && accepts(id)
+        }
+    }
+
+    /**
+     * Union of two disjoint edge sets.
+     */
+    private class DisjointUnion(private val first: Set<AnalysisEdge>, private val second: Set<AnalysisEdge>) :
+        AbstractSet<AnalysisEdge>() {
+        override val size: Int
+            get() = first.size + second.size
+
+        override fun iterator(): Iterator<AnalysisEdge> = (first.asSequence() + second.asSequence()).iterator()
+        override fun contains(element: AnalysisEdge) = element in first || element in second
+    }
+
+    private val allEdges = object : AbstractSet<AnalysisEdge>() {
+        override val size: Int
+            get() = edges.size
+
+        override fun iterator(): Iterator<AnalysisEdge> = edges.iterator()
+        override fun contains(element: AnalysisEdge) = containsEdge(element)
+    }
+
+    private val allVertices = object : AbstractSet<AnalysisNode>() {
+        override val size: Int
+            get() = vertices.size
+
+        override fun iterator(): Iterator<AnalysisNode> = vertices.iterator()
+        override fun contains(element: AnalysisNode) = containsVertex(element)
+    }
+
+    /* Position of the first vertex with the given node index in byIndex, or where it would be */
+    private fun firstWithIndex(index: Int): Int {
+        var low = 0
+        var high = sortedIndices.size
+        while (low < high) {
+            val middle = (low + high) ushr 1
+            if (Integer.compareUnsigned(sortedIndices[middle], index) < 0)
+                low = middle + 1
+            else
+                high = middle
+        }
+        return low
+    }
+
+    private fun vertexIdOrNull(v: AnalysisNode): Int? {
+        val index = v.index.toInt()
+        var i = firstWithIndex(index)
+        while (i < sortedIndices.size && sortedIndices[i] == index) {
+            if (vertices[byIndex[i]] == v)
+                return byIndex[i]
+            i++
+        }
+        return null
+    }
+
+    private fun vertexId(v: AnalysisNode): Int =
+        vertexIdOrNull(v) ?: throw IllegalArgumentException("no such vertex in graph: $v")
+
+    /* Id of edge e among the edges of the given vertex and e's kind, or -1 */
+    private fun findInGroup(offsets: IntArray, ids: IntArray, vertex: Int, e: AnalysisEdge): Int {
+        val group = vertex * KINDS + e.kind.ordinal
+        for (i in offsets[group] until offsets[group + 1])
+            if (edges[ids[i]] === e)
+                return ids[i]
+        return -1
+    }
+
+    private fun kindSlice(offsets: IntArray, ids: IntArray, vertex: AnalysisNode, kind: EdgeKind): EdgeIdSet =
+        EdgeIdSet(offsets, ids, vertexId(vertex), kind.ordinal, kind.ordinal)
+
+    private fun vertexSlice(offsets: IntArray, ids: IntArray, vertex: AnalysisNode): EdgeIdSet =
+        EdgeIdSet(offsets, ids, vertexId(vertex))
+
+    private fun labelSlice(offsets: IntArray, ids: IntArray, vertex: AnalysisNode, label: String): Set<AnalysisEdge> {
+        val id = vertexId(vertex)
+        val labelId = labelIds[label] ?: return emptySet()
+        return EdgeIdSet(offsets, ids, id, label = labelId)
+    }
+
+    private fun candidateEdges(
+        offsets: IntArray,
+        ids: IntArray,
+        vertex: AnalysisNode,
+        constraint: EdgeConstraint
+    ): Collection<AnalysisEdge> {
+        val id = vertexId(vertex)
+        val label = constraint.label?.let { labelIds[it] ?: return emptySet() } ?: -1
+        val kinds = constraint.kinds ?: return EdgeIdSet(offsets, ids, id, label = label)
+        if (kinds.isEmpty())
+            return emptySet()
+        /* Kinds are contiguous groups, so only the groups between the first and last kind are looked at */
+        val first = kinds.minOf { it.ordinal }
+        val last = kinds.maxOf { it.ordinal }
+        val mask = if (kinds.size == last - first + 1) ALL_KINDS else kindMask(kinds)
+        return EdgeIdSet(offsets, ids, id, first, last, mask, label)
+    }
+
+    override fun findNode(index: UInt): AnalysisNode? {
+        val i = firstWithIndex(index.toInt())
+        return if (i < sortedIndices.size && sortedIndices[i] == index.toInt()) vertices[byIndex[i]] else null
+    }
+
+    override fun reachableFrom(source: AnalysisNode, queryE: GraphQueryEdge, queryW: GraphQueryVertex): Reachability =
+        reachability.get(this, source, queryE, queryW, true)
+
+    override fun reachableTo(target: AnalysisNode, queryE: GraphQueryEdge, queryW: GraphQueryVertex): Reachability =
+        reachability.get(this, target, queryE, queryW, false)
+
+    override fun verticesOfType(constraint: NodeTypeConstraint): Collection<AnalysisNode> =
+        typeIndex.verticesOfType(constraint, vertexSet()) ?: vertexSet()
+
+    override fun vertexCountOfType(constraint: NodeTypeConstraint): Int =
+        typeIndex.countOfType(constraint) ?: vertices.size
+
+    override fun edgeCount(constraint: EdgeConstraint): Int = edgeHistogram.count(constraint)
+
+    override fun inDegreeOf(vertex: AnalysisNode, kind: EdgeKind): Int = incomingEdgesOf(vertex, kind).size
+
+    override fun outDegreeOf(vertex: AnalysisNode, kind: EdgeKind): Int = outgoingEdgesOf(vertex, kind).size
+
+    override fun incomingEdgesOf(vertex: AnalysisNode, kind: EdgeKind): Set<AnalysisEdge> =
+        kindSlice(inOffsets, inEdges, vertex, kind)
+
+    override fun outgoingEdgesOf(vertex: AnalysisNode, kind: EdgeKind): Set<AnalysisEdge> =
+        kindSlice(outOffsets, outEdges, vertex, kind)
+
+    override fun incomingEdgesOf(vertex: AnalysisNode, label: String): Set<AnalysisEdge> =
+        labelSlice(inOffsets, inEdges, vertex, label)
+
+    override fun outgoingEdgesOf(vertex: AnalysisNode, label: String): Set<AnalysisEdge> =
+        labelSlice(outOffsets, outEdges, vertex, label)
+
+    override fun incomingEdgesOf(vertex: AnalysisNode, constraint: EdgeConstraint): Collection<AnalysisEdge> =
+        candidateEdges(inOffsets, inEdges, vertex, constraint)
+
+    override fun outgoingEdgesOf(vertex: AnalysisNode, constraint: EdgeConstraint): Collection<AnalysisEdge> =
+        candidateEdges(outOffsets, outEdges, vertex, constraint)
+
+    override fun getAllEdges(sourceVertex: AnalysisNode, targetVertex: AnalysisNode): Set<AnalysisEdge>? {
+        val source = vertexIdOrNull(sourceVertex) ?: return null
+        val target = vertexIdOrNull(targetVertex) ?: return null
+        return EdgeIdSet(outOffsets, outEdges, source, target = target)
+    }
+
+    override fun getEdge(sourceVertex: AnalysisNode, targetVertex: AnalysisNode): AnalysisEdge? =
+        getAllEdges(sourceVertex, targetVertex)?.firstOrNull()
+
+    override fun getVertexSupplier(): Supplier<AnalysisNode>? = null
+
+    override fun getEdgeSupplier(): Supplier<AnalysisEdge>? = null
+
+    override fun addEdge(sourceVertex: AnalysisNode, targetVertex: AnalysisNode): AnalysisEdge = readOnly()
+
+    override fun addEdge(sourceVertex: AnalysisNode, targetVertex: AnalysisNode, e: AnalysisEdge): Boolean =
+        readOnly()
+
+    override fun addVertex(): AnalysisNode = readOnly()
+
+    override fun addVertex(v: AnalysisNode): Boolean = readOnly()
+
+    override fun removeEdge(sourceVertex: AnalysisNode, targetVertex: AnalysisNode): AnalysisEdge = readOnly()
+
+    override fun removeEdge(e: AnalysisEdge): Boolean = readOnly()
+
+    override fun removeVertex(v: AnalysisNode): Boolean = readOnly()
+
+    override fun setEdgeWeight(e: AnalysisEdge, weight: Double): Unit = readOnly()
+
+    private fun readOnly(): Nothing = throw UnsupportedOperationException("Analysis graph snapshots are read-only")
+
+    override fun containsEdge(e: AnalysisEdge): Boolean {
+        val source = e.sourceNode?.let(::vertexIdOrNull) ?: return false
+        return findInGroup(outOffsets, outEdges, source, e) >= 0
+    }
+
+    override fun containsVertex(v: AnalysisNode): Boolean = vertexIdOrNull(v) != null
+
+    override fun edgeSet(): Set<AnalysisEdge> = allEdges
+
+    override fun vertexSet(): Set<AnalysisNode> = allVertices
+
+    override fun degreeOf(vertex: AnalysisNode): Int = inDegreeOf(vertex) + outDegreeOf(vertex)
+
+    /* Like jgrapht's directed graphs, self loops are only listed once */
+    override fun edgesOf(vertex: AnalysisNode): Set<AnalysisEdge> {
+        val id = vertexId(vertex)
+        return DisjointUnion(EdgeIdSet(inOffsets, inEdges, id), EdgeIdSet(outOffsets, outEdges, id, skipSelfLoops = true))
+    }
+
+    override fun inDegreeOf(vertex: AnalysisNode): Int = incomingEdgesOf(vertex).size
+
+    override fun incomingEdgesOf(vertex: AnalysisNode): Set<AnalysisEdge> = vertexSlice(inOffsets, inEdges, vertex)
+
+    override fun outDegreeOf(vertex: AnalysisNode): Int = outgoingEdgesOf(vertex).size
+
+    override fun outgoingEdgesOf(vertex: AnalysisNode): Set<AnalysisEdge> = vertexSlice(outOffsets, outEdges, vertex)
+
+    /* Edges are assumed to be in the snapshot, unlike jgrapht's graphs this doesn't check */
+    override fun getEdgeSource(e: AnalysisEdge): AnalysisNode =
+        e.sourceNode ?: throw IllegalArgumentException("no such edge in graph: $e")
+
+    override fun getEdgeTarget(e: AnalysisEdge): AnalysisNode =
+        e.targetNode ?: throw IllegalArgumentException("no such edge in graph: $e")
+
+    override fun getType(): GraphType = DefaultGraphType.directedPseudograph().asUnmodifiable()
+
+    override fun getEdgeWeight(e: AnalysisEdge): Double = Graph.DEFAULT_EDGE_WEIGHT
+}
@@ -0,0 +1,83 @@
+package il.ac.technion.cs.mipphd.graal.graphquery
+
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.PlanCache
+import org.jgrapht.Graph
+
+/**
+ * Analysis graph as seen by the matchers and exporters: a jgrapht graph with lookups by node index, edge kind and
+ * edge label. Implemented by the mutable [AnalysisGraph] and by the read-only [AnalysisGraphSnapshot].
+ */
+interface AnalysisGraphView : Graph<AnalysisNode, AnalysisEdge> {
+    /**
+     * Changes whenever the graph does, so anything derived from the graph can be reused while it stays the same.
+     */
+    val version: Long
+
+    /**
+     * Query plans for this graph, see [il.ac.technion.cs.mipphd.graal.graphquery.bfs.QueryPlanner].
+     */
+    val plans: PlanCache
+
+    fun findNode(index: UInt): AnalysisNode?
+
+    fun inDegreeOf(vertex: AnalysisNode, kind: EdgeKind): Int
+
+    fun outDegreeOf(vertex: AnalysisNode, kind: EdgeKind): Int
+
+    fun incomingEdgesOf(vertex: AnalysisNode, kind: EdgeKind): Set<AnalysisEdge>
+
+    fun outgoingEdgesOf(vertex: AnalysisNode, kind: EdgeKind): Set<AnalysisEdge>
+
+    fun incomingEdgesOf(vertex: AnalysisNode, label: String): Set<AnalysisEdge>
+
+    fun outgoingEdgesOf(vertex: AnalysisNode, label: String): Set<AnalysisEdge>
+
+    /**
+     * Incoming edges of [vertex] that may satisfy [constraint], without looking at the other incident edges.
+     */
+    fun incomingEdgesOf(vertex: AnalysisNode, constraint: EdgeConstraint): Collection<AnalysisEdge>
+
+    /**
+     * Outgoing edges of [vertex] that may satisfy [constraint], without looking at the other incident edges.
+     */
+    fun outgoingEdgesOf(vertex: AnalysisNode, constraint: EdgeConstraint): Collection<AnalysisEdge>
+
+    /**
+     * The vertices that satisfy [constraint], without looking at the others.
+     */
+    fun verticesOfType(constraint: NodeTypeConstraint): Collection<AnalysisNode>
+
+    /**
+     * Number of [verticesOfType], without listing them.
+     */
+    fun vertexCountOfType(constraint: NodeTypeConstraint): Int = verticesOfType(constraint).size
+
+    /**
+     * Number of edges [edgesOf] lists, without listing them.
+     */
+    fun edgeCount(constraint: EdgeConstraint): Int = edgesOf(constraint).count()
+
+    /**
+     * Whether [node] matches [queryV]. Graphs may memoize the answer.
+     */
+    fun matches(queryV: GraphQueryVertex, node: AnalysisNode): Boolean = queryV.match(node)
+
+    /**
+     * Nodes reachable from [source] through [queryE] edges and [queryW] nodes. Graphs may memoize the answer.
+     */
+    fun reachableFrom(source: AnalysisNode, queryE: GraphQueryEdge, queryW: GraphQueryVertex): Reachability =
+        Reachability.compute(this, source, queryE, queryW)
+
+    /**
+     * Nodes from which [target] is reachable through [queryE] edges and [queryW] nodes. Graphs may memoize the answer.
+     */
+    fun reachableTo(target: AnalysisNode, queryE: GraphQueryEdge, queryW: GraphQueryVertex): Reachability =
+        Reachability.compute(this, target, queryE, queryW, false)
+
+    /**
+     * All the edges of the graph that may satisfy [constraint].
+     */
+    fun edgesOf(constraint: EdgeConstraint): Sequence<AnalysisEdge> =
+        if (constraint.isUnconstrained) edgeSet().asSequence()
+        else vertexSet().asSequence().flatMap { outgoingEdgesOf(it, constraint) }
+}
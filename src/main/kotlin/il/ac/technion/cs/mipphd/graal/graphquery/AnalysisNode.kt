@@ -1,5 +1,6 @@
 package il.ac.technion.cs.mipphd.graal.graphquery
 
+import il.ac.technion.cs.mipphd.graal.utils.NodeTypeCache
 import il.ac.technion.cs.mipphd.graal.utils.WrappedIRNode
 import il.ac.technion.cs.mipphd.graal.utils.WrappedIRNodeImpl
 
@@ -55,6 +56,58 @@ sealed class AnalysisNode private constructor() {
             get() = wrappedNode.isType("ParameterNode")
     }
 
+    /**
+     * Node from the Graal IR CFG, restored from a persisted graph without the backing Graal node.
+     *
+     * Only what queries need is kept: the Graal node (super)types, the textual representation and, for invokes, the
+     * target method.
+     */
+    class Cached(
+        override val index: UInt,
+        val type: String,
+        val text: String,
+        val superTypes: List<String>,
+        val targetMethod: Pair<String, String>? = null
+    ) : AnalysisNode() {
+        companion object {
+            const val NODES_PACKAGE = "org.graalvm.compiler.nodes"
+        }
+
+        override fun equals(other: Any?): Boolean {
+            if (this === other) return true
+            if (other !is Cached) return false
+
+            return index == other.index
+        }
+
+        override fun hashCode(): Int {
+            return index.hashCode()
+        }
+
+        override val nodeName: String
+            get() = "ir${index}"
+
+        override fun description(): String = text
+
+        /**
+         * Same lookup as [WrappedIRNodeImpl.isType], through [NodeTypeCache].
+         */
+        override fun isType(name: String) = NodeTypeCache.isType(superTypes, name)
+
+        val isMerge: Boolean
+            get() = isType("MergeNode")
+        val isStart: Boolean
+            get() = isType("StartNode")
+        val isControl: Boolean
+            get() = isType("FixedNode")
+        val isData: Boolean
+            get() = !isControl
+        val isReturn: Boolean
+            get() = isType("ReturnNode")
+        val isParameter: Boolean
+            get() = isType("ParameterNode")
+    }
+
     /**
      * Node added to the graph by an analysis
      */
@@ -0,0 +1,94 @@
+package il.ac.technion.cs.mipphd.graal.graphquery
+
+import il.ac.technion.cs.mipphd.graal.utils.WrappedIREdge
+
+/**
+ * Necessary condition for an edge to match an edge query, used to pick candidate edges from the adjacency index of
+ * [AnalysisGraph] instead of testing every incident edge. Candidates must still be matched against the query.
+ *
+ * @param kinds Kinds an edge must have, or null if any kind may match.
+ * @param label Label an edge must have, or null if any label may match.
+ */
+data class EdgeConstraint(val kinds: Set<EdgeKind>?, val label: String?) {
+    companion object {
+        @JvmField
+        val NONE = EdgeConstraint(null, null)
+
+        @JvmStatic
+        fun of(query: MQuery): EdgeConstraint = when (query) {
+            is Metadata -> of(query.query)
+            is And -> of(query.left).and(of(query.right))
+            is Or -> of(query.left).or(of(query.right))
+            is FuncCall -> isKind(query)?.let { EdgeConstraint(it, null) } ?: NONE
+            is Equals -> (nameEquals(query.lvalue, query.rvalue) ?: nameEquals(query.rvalue, query.lvalue))
+                ?.let { EdgeConstraint(null, it) } ?: NONE
+
+            else -> NONE
+        }
+
+        /* is('X') */
+        private fun isKind(call: FuncCall): Set<EdgeKind>? {
+            val name = (call.parameters.singleOrNull() as? StringValue)?.value
+            if (call.func != Variable("is") || name == null)
+                return null
+            return when (name) {
+                WrappedIREdge.DATA -> setOf(EdgeKind.DATA, EdgeKind.PHI)
+                WrappedIREdge.CONTROL -> setOf(EdgeKind.CONTROL)
+                WrappedIREdge.ASSOCIATED -> setOf(EdgeKind.ASSOCIATION)
+                else -> setOf(EdgeKind.EXTRA)
+            }
+        }
+
+        /* name() = 'x' */
+        private fun nameEquals(call: MQuery, value: MQuery): String? =
+            if (call == FuncCall(Variable("name"), listOf()) && value is StringValue) value.value else null
+    }
+
+    val isUnconstrained: Boolean
+        get() = kinds == null && label == null
+
+    fun and(other: EdgeConstraint): EdgeConstraint {
+        val kinds = if (kinds == null) other.kinds else if (other.kinds == null) kinds else kinds intersect other.kinds
+        return when {
+            label != null && other.label != null && label != other.label -> EdgeConstraint(setOf(), null)
+            else -> EdgeConstraint(kinds, label ?: other.label)
+        }
+    }
+
+    fun or(other: EdgeConstraint): EdgeConstraint = EdgeConstraint(
+        if (kinds == null || other.kinds == null) null else kinds union other.kinds,
+        if (label == other.label) label else null
+    )
+
+    fun matches(edge: AnalysisEdge): Boolean =
+        (kinds == null || edge.kind in kinds) && (label == null || edge.label == label)
+}
+
+/**
+ * Number of edges of a graph by kind and by label, kept up to date as edges are added and removed, to count the edges
+ * satisfying an [EdgeConstraint] without looking at them.
+ */
+class EdgeHistogram {
+    private val byKind = IntArray(EdgeKind.values().size)
+    private val byLabel = HashMap<String, IntArray>()
+
+    fun add(edge: AnalysisEdge) = update(edge, 1)
+
+    fun remove(edge: AnalysisEdge) = update(edge, -1)
+
+    /**
+     * Number of edges satisfying [constraint].
+     */
+    fun count(constraint: EdgeConstraint): Int {
+        val counts = if (constraint.label == null) byKind else byLabel[constraint.label] ?: return 0
+        return constraint.kinds?.sumOf { counts[it.ordinal] } ?: counts.sum()
+    }
+
+    private fun update(edge: AnalysisEdge, delta: Int) {
+        byKind[edge.kind.ordinal] += delta
+        val counts = byLabel.getOrPut(edge.label) { IntArray(byKind.size) }
+        counts[edge.kind.ordinal] += delta
+        if (counts.all { it == 0 })
+            byLabel.remove(edge.label)
+    }
+}
@@ -0,0 +1,132 @@
+package il.ac.technion.cs.mipphd.graal.graphquery
+
+import il.ac.technion.cs.mipphd.graal.utils.NodeTypeCache
+
+fun interface NodePredicate {
+    fun test(node: AnalysisNode): Boolean
+}
+
+fun interface EdgePredicate {
+    fun test(source: AnalysisNode, edge: AnalysisEdge): Boolean
+}
+
+/* Compiled expression, evaluated against a node (edge == null) or an edge and its source. Returns the raw value
+ * (Boolean, String, Long) instead of allocating MValues. */
+private typealias Eval = (AnalysisNode, AnalysisEdge?) -> Any
+
+private class Const(val value: Any) : (AnalysisNode, AnalysisEdge?) -> Any {
+    override fun invoke(node: AnalysisNode, edge: AnalysisEdge?) = value
+}
+
+/**
+ * Compile [query] into a predicate over nodes, equivalent to `query.interpret(QueryTargetNode(node))`.
+ *
+ * The query is typechecked once, constants are folded and `is('X')` becomes a per node class lookup. Shapes the
+ * compiler doesn't handle fall back to [MQuery.interpret].
+ */
+fun compileNodePredicate(query: MQuery): NodePredicate {
+    val eval = compileTopLevel(query, QueryTargetNode(AnalysisNode.Default), forEdges = false)
+        ?: return NodePredicate { query.interpret(QueryTargetNode(it)) }
+    if (eval is Const)
+        return if (eval.value as Boolean) NodePredicate { true } else NodePredicate { false }
+    return NodePredicate { eval(it, null) as Boolean }
+}
+
+/**
+ * Compile [query] into a predicate over edges, equivalent to `query.interpret(QueryTargetEdge(source, edge))`.
+ *
+ * See [compileNodePredicate].
+ */
+fun compileEdgePredicate(query: MQuery): EdgePredicate {
+    val eval = compileTopLevel(query, QueryTargetEdge(AnalysisNode.Default, AnalysisEdge.Default), forEdges = true)
+        ?: return EdgePredicate { source, edge -> query.interpret(QueryTargetEdge(source, edge)) }
+    if (eval is Const)
+        return if (eval.value as Boolean) EdgePredicate { _, _ -> true } else EdgePredicate { _, _ -> false }
+    return EdgePredicate { source, edge -> eval(source, edge) as Boolean }
+}
+
+private fun compileTopLevel(query: MQuery, target: QueryTarget, forEdges: Boolean): Eval? {
+    // Types don't depend on the target's value, only on its kind, so this holds for every target
+    try {
+        if (!query.typecheck(target))
+            return Const(false)
+        if (query.type(target) != MBoolean)
+            return null // let interpret fail the same way
+    } catch (e: RuntimeException) {
+        return null // e.g. unknown variable, same
+    }
+    return compile(query, forEdges)
+}
+
+private fun compile(query: MQuery, forEdges: Boolean): Eval? = when (query) {
+    is Metadata -> compile(query.query, forEdges)
+    is BooleanValue -> Const(query.value)
+    is StringValue -> Const(query.value)
+    is IntegerValue -> Const(query.value)
+    is Variable -> predefined[query.name]?.contents?.let {
+        if (it is FunctionValue || it is StructValue) null else Const(it.value)
+    }
+    is Equals -> binary(query.lvalue, query.rvalue, forEdges) { l, r ->
+        { node, edge -> l(node, edge) == r(node, edge) }
+    }
+
+    is And -> binary(query.left, query.right, forEdges) { l, r ->
+        { node, edge -> l(node, edge) as Boolean && r(node, edge) as Boolean }
+    }
+
+    is Or -> binary(query.left, query.right, forEdges) { l, r ->
+        { node, edge -> l(node, edge) as Boolean || r(node, edge) as Boolean }
+    }
+
+    is Not -> compile(query.query, forEdges)?.let { q: Eval ->
+        if (q is Const) Const(!(q.value as Boolean))
+        else { node: AnalysisNode, edge: AnalysisEdge? -> !(q(node, edge) as Boolean) }
+    }
+
+    is FuncCall -> compileCall(query, forEdges)
+    is Access -> compileAccess(query, forEdges)
+    else -> null
+}
+
+private inline fun binary(left: MQuery, right: MQuery, forEdges: Boolean, combine: (Eval, Eval) -> Eval): Eval? {
+    val l = compile(left, forEdges) ?: return null
+    val r = compile(right, forEdges) ?: return null
+    val combined = combine(l, r)
+    return if (l is Const && r is Const) Const(combined(AnalysisNode.Default, null)) else combined
+}
+
+private fun compileCall(call: FuncCall, forEdges: Boolean): Eval? {
+    val name = (call.func as? Variable)?.name ?: return null
+    return when {
+        name == "is" && call.parameters.singleOrNull() is StringValue -> {
+            val type = (call.parameters.single() as StringValue).value
+            if (forEdges) {
+                { _: AnalysisNode, edge: AnalysisEdge? -> edgeIsType(edge!!, type) }
+            } else {
+                val byClass = object : ClassValue<Boolean>() {
+                    override fun computeValue(nodeClass: Class<*>) = NodeTypeCache.isType(nodeClass, type)
+                }
+                val eval: Eval = { node, _ ->
+                    if (node is AnalysisNode.IR) byClass.get(node.node().javaClass) else node.isType(type)
+                }
+                eval
+            }
+        }
+
+        name == "name" && call.parameters.isEmpty() && forEdges -> { _: AnalysisNode, edge: AnalysisEdge? -> edge!!.label }
+        else -> null
+    }
+}
+
+/* method().name and method().className */
+private fun compileAccess(access: Access, forEdges: Boolean): Eval? {
+    val call = access.base as? FuncCall ?: return null
+    val field = (access.accessor as? Variable)?.name ?: return null
+    if (forEdges || call.func != Variable("method") || call.parameters.isNotEmpty())
+        return null
+    return when (field) {
+        "className" -> { node: AnalysisNode, _: AnalysisEdge? -> targetMethodOf(node).first }
+        "name" -> { node: AnalysisNode, _: AnalysisEdge? -> targetMethodOf(node).second }
+        else -> null
+    }
+}
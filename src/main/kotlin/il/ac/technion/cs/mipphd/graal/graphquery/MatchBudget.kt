@@ -0,0 +1,98 @@
+package il.ac.technion.cs.mipphd.graal.graphquery
+
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Cooperative cancellation of running matches: the search stops at its next check after [cancel].
+ */
+class CancellationToken {
+    @Volatile
+    var isCancelled = false
+        private set
+
+    fun cancel() {
+        isCancelled = true
+    }
+}
+
+/**
+ * Limits on a single run of a query. When one is reached, the search stops and returns what it found so far, flagged
+ * as truncated (see [MatchTable.truncated]).
+ *
+ * @param maxStates Partial matches the search may expand.
+ * @param maxMatches Full matches the search may find, before grouping repeated vertices.
+ * @param timeout Wall-clock time the search may take, from the start of the run.
+ * @param cancellation Token that stops the search when cancelled.
+ */
+class MatchBudget @JvmOverloads constructor(
+    val maxStates: Long = Long.MAX_VALUE,
+    val maxMatches: Long = Long.MAX_VALUE,
+    val timeout: Duration? = null,
+    val cancellation: CancellationToken? = null,
+) {
+    init {
+        require(maxStates >= 0 && maxMatches >= 0) { "Limits must not be negative" }
+    }
+
+    val isUnlimited: Boolean
+        get() = maxStates == Long.MAX_VALUE && maxMatches == Long.MAX_VALUE && timeout == null && cancellation == null
+
+    /**
+     * Start counting a run of the search against this budget.
+     */
+    fun start(): Tracker = Tracker()
+
+    /**
+     * What a single run has used of the budget. Safe to share between the threads of a parallel search.
+     */
+    inner class Tracker internal constructor() {
+        private val states = AtomicLong()
+        private val matches = AtomicLong()
+        private val deadline = timeout?.let { System.nanoTime() + it.toNanos() }
+
+        /**
+         * Whether the search stopped before finding every match.
+         */
+        @Volatile
+        var truncated = false
+            private set
+
+        /**
+         * Count an expanded partial match. False if the budget ran out and the search should stop.
+         */
+        fun state(): Boolean = !exhausted() && within(states, maxStates)
+
+        /**
+         * Count a full match. False if the budget ran out and the match should be dropped.
+         */
+        fun match(): Boolean = !exhausted() && within(matches, maxMatches)
+
+        /**
+         * Whether the search should stop, for long loops that don't expand partial matches.
+         */
+        fun exhausted(): Boolean {
+            val expired = deadline != null && System.nanoTime() - deadline >= 0
+            if (!truncated && (cancellation?.isCancelled == true || expired))
+                truncated = true
+            return truncated
+        }
+
+        /**
+         * Time left until the deadline, if there is one.
+         */
+        fun remaining(): Duration? = deadline?.let { Duration.ofNanos(maxOf(it - System.nanoTime(), 0)) }
+
+        private fun within(counter: AtomicLong, limit: Long): Boolean {
+            if (counter.incrementAndGet() <= limit)
+                return true
+            truncated = true
+            return false
+        }
+    }
+
+    companion object {
+        @JvmField
+        val UNLIMITED = MatchBudget()
+    }
+}
@@ -0,0 +1,149 @@
+package il.ac.technion.cs.mipphd.graal.graphquery
+
+/**
+ * Matches of a query stored column-wise: one column per query vertex, one row per match, and graph nodes as ints into
+ * a dictionary of the distinct nodes in the table. Every cell is a run of node ids, so multi-valued cells (Kleene
+ * paths, repeated vertices) are stored like single nodes, through an offsets array.
+ *
+ * The table is also a list of today's `Map<GraphQueryVertex, List<AnalysisNode>>` matches. Those maps and their
+ * lists are views over the arrays, created on access.
+ *
+ * @param truncated Whether the search stopped before finding every match, see [MatchBudget].
+ */
+class MatchTable private constructor(
+    val vertices: List<GraphQueryVertex>,
+    private val dictionary: List<AnalysisNode>,
+    /* Cell (row, column) is values[offsets[row * columns + column] until offsets[row * columns + column + 1]] */
+    private val offsets: IntArray,
+    private val values: IntArray,
+    private val rows: Int,
+    val truncated: Boolean,
+) : AbstractList<Map<GraphQueryVertex, List<AnalysisNode>>>() {
+    private val columns = vertices.size
+    private val columnOf = vertices.withIndex().associate { (i, v) -> Pair(v, i) }
+
+    override val size: Int
+        get() = rows
+
+    /**
+     * Number of distinct graph nodes in the table.
+     */
+    val nodeCount: Int
+        get() = dictionary.size
+
+    override fun get(index: Int): Map<GraphQueryVertex, List<AnalysisNode>> {
+        if (index !in 0 until rows)
+            throw IndexOutOfBoundsException("Row $index of $rows")
+        return Row(index)
+    }
+
+    fun columnOf(vertex: GraphQueryVertex): Int =
+        columnOf[vertex] ?: throw IllegalArgumentException("$vertex is not a column of this table")
+
+    /**
+     * Number of nodes bound to [vertex] in [row].
+     */
+    fun cellSize(row: Int, vertex: GraphQueryVertex): Int {
+        val cell = row * columns + columnOf(vertex)
+        return offsets[cell + 1] - offsets[cell]
+    }
+
+    /**
+     * Nodes bound to [vertex] in [row], as a view.
+     */
+    fun nodesOf(row: Int, vertex: GraphQueryVertex): List<AnalysisNode> = Cell(row * columns + columnOf(vertex))
+
+    private inner class Cell(cell: Int) : AbstractList<AnalysisNode>() {
+        private val start = offsets[cell]
+        private val end = offsets[cell + 1]
+
+        override val size: Int
+            get() = end - start
+
+        override fun get(index: Int): AnalysisNode {
+            if (index !in 0 until size)
+                throw IndexOutOfBoundsException("Node $index of $size")
+            return dictionary[values[start + index]]
+        }
+    }
+
+    private inner class Row(private val row: Int) : AbstractMap<GraphQueryVertex, List<AnalysisNode>>() {
+        override val entries: Set<Map.Entry<GraphQueryVertex, List<AnalysisNode>>> =
+            object : AbstractSet<Map.Entry<GraphQueryVertex, List<AnalysisNode>>>() {
+                override val size: Int
+                    get() = columns
+
+                override fun iterator(): Iterator<Map.Entry<GraphQueryVertex, List<AnalysisNode>>> =
+                    vertices.indices.asSequence().map { column ->
+                        java.util.AbstractMap.SimpleImmutableEntry<GraphQueryVertex, List<AnalysisNode>>(
+                            vertices[column], Cell(row * columns + column)
+                        )
+                    }.iterator()
+            }
+
+        override fun get(key: GraphQueryVertex): List<AnalysisNode>? =
+            columnOf[key]?.let { Cell(row * columns + it) }
+
+        override fun containsKey(key: GraphQueryVertex): Boolean = key in columnOf
+    }
+
+    /**
+     * Appends matches row by row. Vertices missing from a match get empty cells.
+     */
+    class Builder(private val vertices: List<GraphQueryVertex>) {
+        private val ids = HashMap<AnalysisNode, Int>()
+        private val dictionary = ArrayList<AnalysisNode>()
+        private var offsets = IntArray(vertices.size * 16 + 1)
+        private var values = IntArray(vertices.size * 16)
+        private var cells = 0
+        private var size = 0
+        private var rows = 0
+
+        fun add(match: Map<GraphQueryVertex, List<AnalysisNode>>): Builder = apply {
+            for (vertex in vertices) {
+                match[vertex]?.forEach { append(idOf(it)) }
+                if (cells + 2 > offsets.size)
+                    offsets = offsets.copyOf(offsets.size * 2)
+                offsets[++cells] = size
+            }
+            rows++
+        }
+
+        @JvmOverloads
+        fun build(truncated: Boolean = false): MatchTable =
+            MatchTable(vertices, dictionary.toList(), offsets.copyOf(cells + 1), values.copyOf(size), rows, truncated)
+
+        private fun idOf(node: AnalysisNode): Int = ids.getOrPut(node) {
+            dictionary.add(node)
+            dictionary.size - 1
+        }
+
+        private fun append(id: Int) {
+            if (size == values.size)
+                values = values.copyOf(maxOf(size * 2, 16))
+            values[size++] = id
+        }
+    }
+
+    companion object {
+        /**
+         * Table of [matches], consuming them one at a time, with a column for each of [vertices] in order. Truncated
+         * if [budget] ran out while finding them.
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun collect(
+            vertices: List<GraphQueryVertex>,
+            matches: Sequence<Map<GraphQueryVertex, List<AnalysisNode>>>,
+            budget: MatchBudget.Tracker? = null,
+        ): MatchTable {
+            val builder = Builder(vertices)
+            matches.forEach { builder.add(it) }
+            return builder.build(budget?.truncated ?: false)
+        }
+
+        @JvmStatic
+        fun of(query: GraphQuery, matches: List<Map<GraphQueryVertex, List<AnalysisNode>>>): MatchTable =
+            matches as? MatchTable ?: collect(query.vertexSet().toList(), matches.asSequence())
+    }
+}
@@ -0,0 +1,89 @@
+package il.ac.technion.cs.mipphd.graal.graphquery
+
+/**
+ * Necessary condition for a node to match a vertex query, as a conjunction of disjunctions of `is('X')` checks,
+ * extracted from the query so candidate nodes can be taken from the type index of the graph. Candidates must still
+ * be matched against the query.
+ *
+ * @param clauses A node must be of one of the types in each clause. No clauses means no constraint.
+ */
+data class NodeTypeConstraint(val clauses: List<Set<String>>) {
+    companion object {
+        @JvmField
+        val NONE = NodeTypeConstraint(listOf())
+
+        @JvmStatic
+        fun of(query: MQuery): NodeTypeConstraint = when (query) {
+            is Metadata -> of(query.query)
+            is And -> NodeTypeConstraint(of(query.left).clauses + of(query.right).clauses)
+            is Or -> {
+                val left = of(query.left).clauses
+                val right = of(query.right).clauses
+                if (left.size == 1 && right.size == 1) NodeTypeConstraint(listOf(left[0] + right[0])) else NONE
+            }
+
+            is FuncCall -> {
+                val name = (query.parameters.singleOrNull() as? StringValue)?.value
+                if (query.func == Variable("is") && name != null) NodeTypeConstraint(listOf(setOf(name))) else NONE
+            }
+
+            else -> NONE
+        }
+    }
+
+    val isUnconstrained: Boolean
+        get() = clauses.isEmpty()
+
+    fun matches(node: AnalysisNode): Boolean = clauses.all { clause -> clause.any(node::isType) }
+}
+
+/**
+ * Vertices bucketed by their type: the Graal node class for IR nodes, the super types for cached IR nodes and the
+ * node class for anything else. Type checks depend only on the bucket, so a [NodeTypeConstraint] is answered by
+ * checking one node per bucket.
+ */
+class NodeTypeIndex {
+    private val buckets = LinkedHashMap<Any, LinkedHashSet<AnalysisNode>>()
+
+    private fun typeOf(node: AnalysisNode): Any = when (node) {
+        is AnalysisNode.IR -> node.node().javaClass
+        is AnalysisNode.Cached -> node.superTypes
+        else -> node.javaClass
+    }
+
+    fun add(node: AnalysisNode) {
+        buckets.getOrPut(typeOf(node)) { LinkedHashSet() }.add(node)
+    }
+
+    fun remove(node: AnalysisNode) {
+        val type = typeOf(node)
+        val bucket = buckets[type] ?: return
+        if (bucket.remove(node) && bucket.isEmpty())
+            buckets.remove(type)
+    }
+
+    /**
+     * Number of nodes satisfying [constraint], or null if it is unconstrained.
+     */
+    fun countOfType(constraint: NodeTypeConstraint): Int? {
+        if (constraint.isUnconstrained)
+            return null
+        return buckets.values.sumOf { if (constraint.matches(it.first())) it.size else 0 }
+    }
+
+    /**
+     * The nodes satisfying [constraint], or null if it is unconstrained. They are in the order of [vertices], all the
+     * indexed nodes in graph order, so matching on the candidates finds matches in the same order as on all nodes.
+     */
+    fun verticesOfType(constraint: NodeTypeConstraint, vertices: Iterable<AnalysisNode>): Collection<AnalysisNode>? {
+        if (constraint.isUnconstrained)
+            return null
+        val matching = buckets.filter { (_, bucket) -> constraint.matches(bucket.first()) }
+        return when (matching.size) {
+            0 -> listOf()
+            // Nodes are added in graph order, so a single bucket is already in order
+            1 -> matching.values.single()
+            else -> vertices.filter { typeOf(it) in matching }
+        }
+    }
+}
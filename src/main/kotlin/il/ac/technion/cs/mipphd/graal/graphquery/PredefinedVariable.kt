@@ -5,8 +5,34 @@ import il.ac.technion.cs.mipphd.graal.utils.WrappedIREdge
 import kotlin.RuntimeException
 
 
+/**
+ * A query function applied to a node it doesn't apply to, e.g. `method()` to a node that isn't an invoke.
+ */
+class NotApplicableException(message: String) : RuntimeException(message)
+
 data class PredefinedVariable(val name: String, val type: MType, val contents: MValue)
 
+/**
+ * Declaring class name and name of the method an invoke node calls.
+ */
+internal fun targetMethodOf(node: AnalysisNode): Pair<String, String> =
+    if (node is AnalysisNode.IR && NodeWrapperUtils.isInvoke(node)) {
+        val method = NodeWrapperUtils.getTargetMethod(node)
+        Pair(method.declaringClassName, method.name)
+    } else if (node is AnalysisNode.Cached && node.targetMethod != null) {
+        node.targetMethod
+    } else {
+        throw NotApplicableException("Applied `method` to $node which is not an invoke node")
+    }
+
+internal fun edgeIsType(edge: AnalysisEdge, name: String): Boolean = when (edge) {
+    is AnalysisEdge.Data -> name == WrappedIREdge.DATA
+    is AnalysisEdge.Control -> name == WrappedIREdge.CONTROL
+    is AnalysisEdge.Association -> name == WrappedIREdge.ASSOCIATED
+    is AnalysisEdge.Extra -> name == edge.javaClass.simpleName// TODO: Use reflection?
+    is AnalysisEdge.Default -> false
+}
+
 private fun createMap(vararg l: PredefinedVariable) = l.associateBy { it.name }
 private fun functionVariable(name: String, type: MType, impl: (List<MQuery>, QueryTarget) -> MValue) =
     PredefinedVariable(name, type, FunctionValue(type, impl))
@@ -16,17 +42,7 @@ val predefined = createMap(
         val cmp = (p[0] as StringValue).value
         when (t) {
             is QueryTargetNode -> BooleanValue(t.node.isType(cmp))
-            is QueryTargetEdge -> BooleanValue(
-                t.edge.let {
-                    when (it) {
-                        is AnalysisEdge.Data -> cmp == WrappedIREdge.DATA
-                        is AnalysisEdge.Control -> cmp == WrappedIREdge.CONTROL
-                        is AnalysisEdge.Association -> cmp == WrappedIREdge.ASSOCIATED
-                        is AnalysisEdge.Extra -> cmp == it.javaClass.simpleName// TODO: Use reflection?
-                        is AnalysisEdge.Default -> false
-                    }
-                }
-            )
+            is QueryTargetEdge -> BooleanValue(edgeIsType(t.edge, cmp))
         }
     },
     functionVariable(
@@ -34,19 +50,8 @@ val predefined = createMap(
         MFunction(listOf(), MStruct(mapOf(Pair("className", MString), Pair("name", MString))))
     ) { _, t ->
         if (t is QueryTargetNode) {
-            val node = t.node
-            if (node is AnalysisNode.IR) {
-                val method = NodeWrapperUtils.getTargetMethod(node)
-
-                StructValue(
-                    mapOf(
-                        Pair("className", StringValue(method.declaringClassName)),
-                        Pair("name", StringValue(method.name))
-                    )
-                )
-            } else {
-                throw RuntimeException("Applied `method` to $node which is not an IR node")
-            }
+            val (className, name) = targetMethodOf(t.node)
+            StructValue(mapOf(Pair("className", StringValue(className)), Pair("name", StringValue(name))))
         } else {
             throw RuntimeException("Not a node")
         }
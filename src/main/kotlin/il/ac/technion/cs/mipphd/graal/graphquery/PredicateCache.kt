@@ -0,0 +1,107 @@
+package il.ac.technion.cs.mipphd.graal.graphquery
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Results of vertex predicates on the nodes of one [AnalysisGraph], shared by every query matched on it.
+ *
+ * Structurally equal predicates (ignoring capture names and other metadata) share their results, which are stored
+ * as two bits per node (known, matches) over dense node ordinals and computed on first use. Vertex predicates only
+ * look at the node itself, so results are dropped only for removed nodes; edge changes keep them.
+ *
+ * Lookups may run concurrently, but not concurrently with changes to the graph.
+ */
+class PredicateCache internal constructor(nodes: Collection<AnalysisNode>) {
+    private class Memo(val predicate: NodePredicate, capacity: Int) {
+        @Volatile
+        var bits = AtomicLongArray(wordsFor(capacity))
+    }
+
+    private val ordinals = HashMap<AnalysisNode, Int>()
+    private val freeOrdinals = ArrayDeque<Int>()
+    private var capacity = maxOf(nodes.size, MIN_CAPACITY)
+    private val memos = ConcurrentHashMap<MQuery, Memo>()
+
+    /* Query vertices don't override equals/hashCode, so this skips hashing the (possibly large) query */
+    private val vertexMemos = ConcurrentHashMap<GraphQueryVertex, Pair<MQuery, Memo>>()
+
+    init {
+        nodes.forEach(::nodeAdded)
+    }
+
+    /**
+     * Number of distinct predicates seen so far.
+     */
+    val predicateCount: Int
+        get() = memos.size
+
+    /**
+     * Register the vertex predicates of [queries] ahead of matching.
+     */
+    fun register(queries: Collection<GraphQuery>) {
+        queries.forEach { query -> query.vertexSet().forEach(::memoOf) }
+    }
+
+    /**
+     * Same as `queryV.match(node)`, evaluated at most once per node and predicate.
+     */
+    fun test(queryV: GraphQueryVertex, node: AnalysisNode): Boolean {
+        val ordinal = ordinals[node] ?: return queryV.match(node)
+        val memo = memoOf(queryV)
+        val bits = memo.bits
+        val word = ordinal ushr 5
+        val shift = (ordinal and 31) * 2
+        val state = bits[word] ushr shift
+        if (state and KNOWN != 0L)
+            return state and MATCHES != 0L
+
+        val result = memo.predicate.test(node)
+        val set = (if (result) KNOWN or MATCHES else KNOWN) shl shift
+        bits.accumulateAndGet(word, set, Long::or)
+        return result
+    }
+
+    internal fun nodeAdded(node: AnalysisNode) {
+        if (ordinals.containsKey(node))
+            return
+        val ordinal = freeOrdinals.removeLastOrNull() ?: ordinals.size
+        if (ordinal >= capacity) {
+            capacity *= 2
+            for (memo in memos.values) {
+                val old = memo.bits
+                memo.bits = AtomicLongArray(wordsFor(capacity)).also { bits ->
+                    for (i in 0 until old.length())
+                        bits[i] = old[i]
+                }
+            }
+        }
+        ordinals[node] = ordinal
+    }
+
+    internal fun nodeRemoved(node: AnalysisNode) {
+        val ordinal = ordinals.remove(node) ?: return
+        val clear = ((KNOWN or MATCHES) shl ((ordinal and 31) * 2)).inv()
+        for (memo in memos.values)
+            memo.bits.accumulateAndGet(ordinal ushr 5, clear, Long::and)
+        freeOrdinals.addLast(ordinal)
+    }
+
+    private fun memoOf(queryV: GraphQueryVertex): Memo {
+        val query = queryV.mQuery
+        val known = vertexMemos[queryV]
+        if (known != null && known.first === query)
+            return known.second
+        val key = (query as? Metadata)?.query ?: query
+        return memos.computeIfAbsent(key) { Memo(compileNodePredicate(it), capacity) }
+            .also { vertexMemos[queryV] = Pair(query, it) }
+    }
+
+    private companion object {
+        const val KNOWN = 1L
+        const val MATCHES = 2L
+        const val MIN_CAPACITY = 64
+
+        fun wordsFor(capacity: Int) = (capacity + 31) ushr 5
+    }
+}
@@ -2,8 +2,20 @@ package il.ac.technion.cs.mipphd.graal.graphquery
 
 typealias QueryResults = List<Map<GraphQueryVertex, List<AnalysisNode>>>
 interface CompiledQuery {
-    fun execute(graph: AnalysisGraph): Map<GraphQuery, QueryResults>
+    fun execute(graph: AnalysisGraphView): Map<GraphQuery, QueryResults>
 }
 interface QueryCompiler {
     fun compile(queries: List<GraphQuery>): CompiledQuery
-}
\ No newline at end of file
+
+    /**
+     * Compile [queries] so that each run of each query is limited by [budget]. Compilers that can't stop a run early
+     * ignore the budget.
+     */
+    fun compile(queries: List<GraphQuery>, budget: MatchBudget): CompiledQuery = compile(queries)
+}
+
+/**
+ * Whether these results are missing matches because the run ran out of its [MatchBudget].
+ */
+val QueryResults.isTruncated: Boolean
+    get() = (this as? MatchTable)?.truncated ?: false
\ No newline at end of file
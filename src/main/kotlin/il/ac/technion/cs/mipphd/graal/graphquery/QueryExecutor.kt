@@ -6,10 +6,9 @@ private typealias CaptureGroupAction<T> = (List<AnalysisNode>) -> T?
 private typealias CGAItem<T> = Pair<String, CaptureGroupAction<T>>
 private typealias CaptureGroupActions<T> = Map<String, CaptureGroupAction<T>>
 private typealias WholeMatchAction = (Map<String, List<AnalysisNode>>) -> Unit
-private typealias GraphQueryMatch = Map<GraphQueryVertex, List<AnalysisNode>>
 
 data class WholeMatchQuery(val query: GraphQuery, val action: WholeMatchAction) {
-    constructor(query: String, action: WholeMatchAction) : this(GraphQuery.importQuery(query), action)
+    constructor(query: String, action: WholeMatchAction) : this(GraphQuery.cachedQuery(query), action)
 }
 
 data class CaptureGroupQuery<T>(val query: GraphQuery, val action: CaptureGroupActions<T>) {
@@ -19,7 +18,7 @@ data class CaptureGroupQuery<T>(val query: GraphQuery, val action: CaptureGroupA
 
     constructor(query: GraphQuery, vararg actions: CGAItem<T>) : this(query, associate(actions))
 
-    constructor(query: String, vararg actions: CGAItem<T>) : this(GraphQuery.importQuery(query), associate(actions))
+    constructor(query: String, vararg actions: CGAItem<T>) : this(GraphQuery.cachedQuery(query), associate(actions))
 }
 
 abstract class QueryExecutor<T>(
@@ -89,14 +88,15 @@ abstract class QueryExecutor<T>(
     @JvmName("WholeMatchQuery_getValue")
     protected operator fun WholeMatchQuery.getValue(thisRef: QueryExecutor<T>, property: KProperty<*>) = this
 
-    private fun runQueries() = queries
-        .flatMap { (name, query) -> query.match(graph).map { Pair(name, it) } }
+    private fun runQueries() = queries.map { (name, query) -> Pair(name, query.matchTable(graph)) }
 
     fun iterateUntilFixedPoint(limit: Int = 50): Map<AnalysisNode, T> {
         state = MapProxy(hashMapOf<AnalysisNode, T>()).withDefault { initializer() }
+        graph.cachePredicates().register(queries.values) // Shared by all queries and iterations
         for (i in 0..limit) {
             hasChanged = false
-            runQueries().asSequence().map(this::execute).forEach(state::putAll)
+            for ((name, table) in runQueries())
+                table.indices.asSequence().map { execute(name, table, it) }.forEach(state::putAll)
             if (!hasChanged)
                 break
 
@@ -104,18 +104,13 @@ abstract class QueryExecutor<T>(
         return state
     }
 
-    private fun execute(namedMatch: Pair<String, GraphQueryMatch>): Map<AnalysisNode, T> {
-        val (name, match) = namedMatch
-        wholeMatchActions[name]?.invoke(match.filter { it.key.captureGroup().isPresent }
-            .mapKeys { it.key.captureGroup().get() })
-        return match.entries.asSequence()
-            .filter {
-                it.key.captureGroup().isPresent && (captureGroupActions[name]?.containsKey(
-                    it.key.captureGroup().get()
-                ) ?: false)
-            }
-            .flatMap { (queryVertex, nodes) ->
-                // queryVertex.captureGroup().get()
+    private fun execute(name: String, table: MatchTable, row: Int): Map<AnalysisNode, T> {
+        val captured = table.vertices.filter { it.captureGroup().isPresent }
+        wholeMatchActions[name]?.invoke(captured.associate { Pair(it.captureGroup().get(), table.nodesOf(row, it)) })
+        return captured.asSequence()
+            .filter { captureGroupActions[name]?.containsKey(it.captureGroup().get()) ?: false }
+            .flatMap { queryVertex ->
+                val nodes = table.nodesOf(row, queryVertex)
                 val ret = captureGroupActions[name]!![queryVertex.captureGroup().get()]!!.invoke(nodes)
                 nodes.map { node -> Pair(node, ret) }
             }
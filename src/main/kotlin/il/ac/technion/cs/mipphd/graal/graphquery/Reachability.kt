@@ -0,0 +1,153 @@
+package il.ac.technion.cs.mipphd.graal.graphquery
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Paths through one or more edges matching a Kleene query edge, every node after the first matching the Kleene
+ * target query vertex.
+ *
+ * Forwards, these are the paths starting at [source], and [nodes] are their ends. Backwards, these are the paths
+ * ending at [source], and [nodes] are their starts (which don't have to match the target vertex). Kept as a
+ * breadth-first tree, so a shortest witness path can be rebuilt for each node.
+ */
+class Reachability private constructor(
+    val source: AnalysisNode,
+    val forwards: Boolean,
+    private val parents: Map<AnalysisNode, AnalysisNode>,
+    /**
+     * Reached nodes, closest first. Includes [source] if it is on a cycle.
+     */
+    val nodes: List<AnalysisNode>,
+) {
+    companion object {
+        @JvmStatic
+        @JvmOverloads
+        fun compute(
+            graph: AnalysisGraphView,
+            source: AnalysisNode,
+            queryE: GraphQueryEdge,
+            queryW: GraphQueryVertex,
+            forwards: Boolean = true
+        ): Reachability {
+            val parents = HashMap<AnalysisNode, AnalysisNode>()
+            val nodes = ArrayList<AnalysisNode>()
+            val queue = ArrayDeque(listOf(source))
+            while (queue.isNotEmpty()) {
+                val v = queue.removeFirst()
+                val edges = if (forwards) graph.outgoingEdgesOf(v, queryE.constraint)
+                else graph.incomingEdgesOf(v, queryE.constraint)
+                for (e in edges) {
+                    val other = if (forwards) graph.getEdgeTarget(e) else graph.getEdgeSource(e)
+                    if (other in parents || !queryE.match(graph.getEdgeSource(e), e))
+                        continue
+                    // Backwards, any node can start a path, but only target nodes can be in the middle of one
+                    val matches = graph.matches(queryW, other)
+                    if (forwards && !matches)
+                        continue
+                    parents[other] = v
+                    nodes.add(other)
+                    if (other != source && matches)
+                        queue.addLast(other)
+                }
+            }
+            return Reachability(source, forwards, parents, nodes)
+        }
+
+        /**
+         * Whether [target] is reachable from [source] (see [compute]), searching forwards from [source] and backwards
+         * from [target] at the same time, always expanding the smaller frontier, until the two searches meet.
+         */
+        @JvmStatic
+        fun connected(
+            graph: AnalysisGraphView,
+            source: AnalysisNode,
+            target: AnalysisNode,
+            queryE: GraphQueryEdge,
+            queryW: GraphQueryVertex
+        ): Boolean {
+            if (!graph.matches(queryW, target))
+                return false
+            /* The source only counts as visited forwards once it is reached again through a cycle */
+            val forwardSeen = HashSet<AnalysisNode>()
+            val backwardSeen = hashSetOf(target)
+            var forwardFrontier = listOf(source)
+            var backwardFrontier = listOf(target)
+            while (forwardFrontier.isNotEmpty() && backwardFrontier.isNotEmpty()) {
+                val forwards = forwardFrontier.size <= backwardFrontier.size
+                val next = ArrayList<AnalysisNode>()
+                for (v in if (forwards) forwardFrontier else backwardFrontier) {
+                    val edges = if (forwards) graph.outgoingEdgesOf(v, queryE.constraint)
+                    else graph.incomingEdgesOf(v, queryE.constraint)
+                    for (e in edges) {
+                        if (!queryE.match(graph.getEdgeSource(e), e))
+                            continue
+                        if (forwards) {
+                            val other = graph.getEdgeTarget(e)
+                            if (other in forwardSeen || !graph.matches(queryW, other))
+                                continue
+                            if (other in backwardSeen)
+                                return true
+                            forwardSeen.add(other)
+                            next.add(other)
+                        } else {
+                            val other = graph.getEdgeSource(e)
+                            if (other == source || other in forwardSeen)
+                                return true
+                            if (other in backwardSeen || !graph.matches(queryW, other))
+                                continue
+                            backwardSeen.add(other)
+                            next.add(other)
+                        }
+                    }
+                }
+                if (forwards) forwardFrontier = next else backwardFrontier = next
+            }
+            return false
+        }
+    }
+
+    operator fun contains(node: AnalysisNode) = node in parents
+
+    /**
+     * The nodes after the first one on a shortest path between [source] and [node]: from [source] to [node] forwards,
+     * from [node] to [source] backwards.
+     */
+    fun pathTo(node: AnalysisNode): List<AnalysisNode> {
+        val path = ArrayList<AnalysisNode>()
+        var current = node
+        do {
+            if (forwards || current != node)
+                path.add(current)
+            current = parents[current] ?: throw IllegalArgumentException("$node is not connected to $source")
+        } while (current != source)
+        if (forwards)
+            path.reverse()
+        else
+            path.add(source)
+        return path
+    }
+}
+
+/**
+ * Memoized [Reachability] per query edge, target query vertex, direction and source node.
+ */
+class ReachabilityCache {
+    /* Query edges and vertices don't override equals/hashCode, so these are identity keys */
+    private val closures =
+        ConcurrentHashMap<Triple<GraphQueryEdge, GraphQueryVertex, Boolean>, ConcurrentHashMap<AnalysisNode, Reachability>>()
+
+    fun get(
+        graph: AnalysisGraphView,
+        source: AnalysisNode,
+        queryE: GraphQueryEdge,
+        queryW: GraphQueryVertex,
+        forwards: Boolean
+    ): Reachability =
+        closures.computeIfAbsent(Triple(queryE, queryW, forwards)) { ConcurrentHashMap() }
+            .computeIfAbsent(source) { Reachability.compute(graph, it, queryE, queryW, forwards) }
+
+    fun clear() {
+        if (closures.isNotEmpty())
+            closures.clear()
+    }
+}
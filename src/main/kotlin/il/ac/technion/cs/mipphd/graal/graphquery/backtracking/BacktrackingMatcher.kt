@@ -0,0 +1,156 @@
+package il.ac.technion.cs.mipphd.graal.graphquery.backtracking
+
+import arrow.core.Either
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisGraphView
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisNode
+import il.ac.technion.cs.mipphd.graal.graphquery.GraphQuery
+import il.ac.technion.cs.mipphd.graal.graphquery.GraphQueryVertex
+import il.ac.technion.cs.mipphd.graal.graphquery.MatchBudget
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.*
+
+private typealias Match = Map<GraphQueryVertex, List<AnalysisNode>>
+
+/**
+ * Depth-first counterpart of [bfsMatch].
+ *
+ * Explores the same partial matches as [bfsMatch], but keeps the bindings of the current one in an array indexed by
+ * query vertex ordinal, and its queue of pending bindings in another, undoing both on backtracking instead of copying
+ * them into every work item. Finds the same matches, in a different order, and skips the same duplicate partial
+ * matches.
+ */
+class BacktrackingMatcher(
+    private val query: GraphQuery,
+    private val graph: AnalysisGraphView,
+    private val plan: QueryPlan = QueryPlanner.plan(query, graph),
+    private val statistics: MatchStatistics? = null,
+    private val options: MatchOptions = MatchOptions.DEFAULT,
+    private val budget: MatchBudget.Tracker? = null,
+) {
+    private val vertices = query.vertexSet().toList()
+    private val ordinals = vertices.withIndex().associate { (i, v) -> Pair(v, i) }
+    private val kleeneTargets = vertices.map { kleeneTargetsOf(query, it) }
+
+    fun match(): List<Match> = matchLazily().toList()
+
+    /**
+     * See [bfsMatchLazily]. [graph] must not change while the sequence is consumed.
+     */
+    fun matchLazily(): Sequence<Match> =
+        graph.verticesOfType(plan.start.typeConstraint).asSequence()
+            .takeWhile { budget?.exhausted() != true }
+            .filter { graph.matches(plan.start, it) }
+            .flatMap { groupRepeatedLazily(query, Search().run(plan.start, it)) }
+
+    private inner class Search {
+        private val keys = BindingKeys(query)
+        private val bindings = arrayOfNulls<MatchedNodes>(vertices.size)
+        private var boundCount = 0
+
+        /* Pending bindings, in the order bfsMatch would take them from the work item's queue */
+        private var queueVertices = IntArray(vertices.size * 2 + 1)
+        private var queueNodes = arrayOfNulls<MatchedNodes>(vertices.size * 2 + 1)
+        private var head = 0
+        private var tail = 0
+
+        fun run(queryStart: GraphQueryVertex, graphStart: AnalysisNode): Sequence<Match> = sequence {
+            statistics?.bound(queryStart, listOf(graphStart))
+            bind(ordinals.getValue(queryStart), Either.Right(listOf(graphStart)))
+            // Like bfsMatch, the start node's children are queued without checking them
+            for (childrenMatch in childrenOf(queryStart, graphStart) { _, _ -> true }) {
+                if (budget?.exhausted() == true)
+                    break
+                val mark = tail
+                childrenMatch.forEach { (qW, m) -> enqueue(ordinals.getValue(qW), m) }
+                step()
+                tail = mark
+            }
+        }
+
+        private suspend fun SequenceScope<Match>.step() {
+            if (!keys.firstSeen(keys.keyOf(bindings, queueVertices, queueNodes, head, tail))) {
+                statistics?.suppressed()
+                return
+            }
+            if (budget?.state() == false)
+                return
+            statistics?.workItem()
+            if (head == tail) {
+                assert(boundCount == vertices.size) { "matches.size != query.size, matches: ${bindings.toList()}" }
+                if (budget?.match() == false)
+                    return
+                statistics?.matched()
+                yield(vertices.indices.associate { Pair(vertices[it], matchedNodesOf(bindings[it]!!)) })
+                return
+            }
+
+            val q = queueVertices[head]
+            val m = queueNodes[head]!!
+            head++
+            val previous = bindings[q]
+            bind(q, m)
+            statistics?.bound(vertices[q], m.orNull() ?: listOf())
+
+            val children = childrenOf(vertices[q], originOrLast(m)) { qW, mW ->
+                consistentBinding(bindings[ordinals.getValue(qW)], mW)
+            }
+            val rebound = kleeneTargets[q]
+            for (childrenMatch in children) {
+                if (budget?.exhausted() == true)
+                    break
+                val mark = tail
+                // Like expand(), Kleene targets bound before q are rebound to the path from q
+                var replaced: ArrayList<Pair<Int, MatchedNodes>>? = null
+                for ((qW, mW) in childrenMatch) {
+                    val w = ordinals.getValue(qW)
+                    val existing = bindings[w]
+                    if (existing == null) {
+                        enqueue(w, mW)
+                    } else if (qW in rebound) {
+                        if (replaced == null)
+                            replaced = ArrayList()
+                        replaced.add(Pair(w, existing))
+                        bindings[w] = mW
+                    }
+                }
+                step()
+                replaced?.forEach { (w, existing) -> bindings[w] = existing }
+                tail = mark
+            }
+
+            unbind(q, previous)
+            head--
+        }
+
+        /* Options are checked against the bindings when the first combination is taken, before any is explored */
+        private fun childrenOf(
+            queryV: GraphQueryVertex,
+            graphV: AnalysisNode,
+            accept: (GraphQueryVertex, MatchedNodes) -> Boolean
+        ) = possibleChildrenMatches(query, graph, queryV, graphV, plan, options, budget, ::bindingOf).asSequence()
+            .flatMap { permutationsLazily(it, accept) }
+
+        private fun bindingOf(queryV: GraphQueryVertex): MatchedNodes? = bindings[ordinals.getValue(queryV)]
+
+        private fun bind(q: Int, m: MatchedNodes) {
+            if (bindings[q] == null)
+                boundCount++
+            bindings[q] = m
+        }
+
+        private fun unbind(q: Int, previous: MatchedNodes?) {
+            if (previous == null)
+                boundCount--
+            bindings[q] = previous
+        }
+
+        private fun enqueue(q: Int, m: MatchedNodes) {
+            if (tail == queueVertices.size) {
+                queueVertices = queueVertices.copyOf(tail * 2)
+                queueNodes = queueNodes.copyOf(tail * 2)
+            }
+            queueVertices[tail] = q
+            queueNodes[tail] = m
+            tail++
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package il.ac.technion.cs.mipphd.graal.graphquery.backtracking
+
+import il.ac.technion.cs.mipphd.graal.graphquery.*
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.MatchOptions
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.QueryPlanner
+
+/**
+ * @param budget Limits on each query, every time it is executed.
+ */
+class CompiledBacktrackingQuery @JvmOverloads constructor(
+    private val queries: List<GraphQuery>,
+    private val budget: MatchBudget = MatchBudget.UNLIMITED,
+) : CompiledQuery {
+    override fun execute(graph: AnalysisGraphView): Map<GraphQuery, QueryResults> = queries.associateWith {
+        val tracker = if (budget.isUnlimited) null else budget.start()
+        val matcher = BacktrackingMatcher(it, graph, QueryPlanner.plan(it, graph), null, MatchOptions.DEFAULT, tracker)
+        MatchTable.collect(it.vertexSet().toList(), matcher.matchLazily(), tracker)
+    }
+}
+
+class BacktrackingQueryCompiler : QueryCompiler {
+    override fun compile(queries: List<GraphQuery>): CompiledQuery = CompiledBacktrackingQuery(queries)
+
+    override fun compile(queries: List<GraphQuery>, budget: MatchBudget): CompiledQuery =
+        CompiledBacktrackingQuery(queries, budget)
+}
@@ -2,11 +2,24 @@ package il.ac.technion.cs.mipphd.graal.graphquery.bfs
 
 import il.ac.technion.cs.mipphd.graal.graphquery.*
 
-class CompiledBFSQuery(private val queries: List<GraphQuery>) : CompiledQuery {
-    override fun execute(graph: AnalysisGraph): Map<GraphQuery, QueryResults>
-        = queries.associateWith { it.match(graph) }
+/**
+ * @param parallelism See [MatchOptions.parallelism].
+ * @param budget Limits on each query, every time it is executed.
+ */
+class CompiledBFSQuery @JvmOverloads constructor(
+    private val queries: List<GraphQuery>,
+    val parallelism: Int = 1,
+    val budget: MatchBudget = MatchBudget.UNLIMITED,
+) : CompiledQuery {
+    private val options = MatchOptions(parallelism = parallelism)
+
+    override fun execute(graph: AnalysisGraphView): Map<GraphQuery, QueryResults>
+        = queries.associateWith { it.matchTable(graph, options, budget) }
 }
 
-class BFSQueryCompiler : QueryCompiler {
-    override fun compile(queries: List<GraphQuery>): CompiledQuery = CompiledBFSQuery(queries)
-}
\ No newline at end of file
+class BFSQueryCompiler @JvmOverloads constructor(val parallelism: Int = 1) : QueryCompiler {
+    override fun compile(queries: List<GraphQuery>): CompiledQuery = CompiledBFSQuery(queries, parallelism)
+
+    override fun compile(queries: List<GraphQuery>, budget: MatchBudget): CompiledQuery =
+        CompiledBFSQuery(queries, parallelism, budget)
+}
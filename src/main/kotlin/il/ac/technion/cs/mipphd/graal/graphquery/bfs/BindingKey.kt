@@ -0,0 +1,95 @@
+package il.ac.technion.cs.mipphd.graal.graphquery.bfs
+
+import arrow.core.Either
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisNode
+import il.ac.technion.cs.mipphd.graal.graphquery.GraphQuery
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Canonical form of a partial match, as an array of ints: equal partial matches have equal keys.
+ */
+class BindingKey internal constructor(private val ids: IntArray) {
+    private val hash = ids.contentHashCode()
+
+    override fun equals(other: Any?): Boolean =
+        other is BindingKey && hash == other.hash && ids.contentEquals(other.ids)
+
+    override fun hashCode(): Int = hash
+}
+
+/**
+ * [BindingKey]s for the partial matches of one search, remembering which were already seen.
+ *
+ * A key lists the binding of every query vertex by ordinal, then the pending bindings in queue order, with graph
+ * nodes numbered in the order this instance first sees them. Two partial matches with the same key lead to the same
+ * matches, so only the first needs to be expanded. Safe to share between threads.
+ */
+class BindingKeys(query: GraphQuery) {
+    private val vertices = query.vertexSet().toList()
+    private val ordinals = vertices.withIndex().associate { (i, v) -> Pair(v, i) }
+    private val nodeIds = ConcurrentHashMap<AnalysisNode, Int>()
+    private val nextNodeId = AtomicInteger()
+    private val seen = ConcurrentHashMap.newKeySet<BindingKey>()
+
+    /**
+     * Whether [key] is new to this search. Marks it as seen.
+     */
+    fun firstSeen(key: BindingKey): Boolean = seen.add(key)
+
+    fun keyOf(item: WorkItem): BindingKey = Builder().apply {
+        vertices.forEach { add(item.matches[it]) }
+        item.queue.forEach { (v, m) -> add(ordinals.getValue(v), m) }
+    }.build()
+
+    /**
+     * Key of [bindings], indexed by vertex ordinal, with [queueNodes] pending for the vertex ordinals in
+     * [queueVertices], from [head] to [tail].
+     */
+    fun keyOf(
+        bindings: Array<MatchedNodes?>,
+        queueVertices: IntArray,
+        queueNodes: Array<MatchedNodes?>,
+        head: Int,
+        tail: Int
+    ): BindingKey = Builder().apply {
+        bindings.forEach(::add)
+        for (i in head until tail)
+            add(queueVertices[i], queueNodes[i])
+    }.build()
+
+    private fun idOf(node: AnalysisNode): Int = nodeIds.computeIfAbsent(node) { nextNodeId.getAndIncrement() }
+
+    private inner class Builder {
+        private var ids = IntArray(vertices.size * 4)
+        private var size = 0
+
+        fun add(ordinal: Int, m: MatchedNodes?) {
+            append(ordinal)
+            add(m)
+        }
+
+        /* Unbound is -1, an empty Kleene path from a node is -2 and the node, a list is its size and the nodes */
+        fun add(m: MatchedNodes?) {
+            when (m) {
+                null -> append(-1)
+                is Either.Left -> {
+                    append(-2)
+                    append(idOf(m.value))
+                }
+                is Either.Right -> {
+                    append(m.value.size)
+                    m.value.forEach { append(idOf(it)) }
+                }
+            }
+        }
+
+        fun build() = BindingKey(ids.copyOf(size))
+
+        private fun append(value: Int) {
+            if (size == ids.size)
+                ids = ids.copyOf(maxOf(size * 2, 8))
+            ids[size++] = value
+        }
+    }
+}
@@ -13,9 +13,24 @@ enum class Direction {
 
 typealias MatchedNodes = Either<AnalysisNode, List<AnalysisNode>>
 
-fun possibleChildrenMatches(query: GraphQuery, graph: AnalysisGraph, queryV: GraphQueryVertex, graphV: AnalysisNode):
-        List<Map<GraphQueryVertex, List<MatchedNodes>>> =
-    listOf(query.edgesOf(queryV).mapNotNull { qe ->
+/**
+ * Options for binding each neighbour of [queryV], given that it is bound to [graphV].
+ *
+ * [bindingOf] gives the neighbours that are already bound; Kleene edges between two bound vertices are only checked
+ * for a path between them, instead of enumerating everything reachable from one end. Enumerating Kleene paths stops
+ * early when [budget] runs out.
+ */
+fun possibleChildrenMatches(
+    query: GraphQuery,
+    graph: AnalysisGraphView,
+    queryV: GraphQueryVertex,
+    graphV: AnalysisNode,
+    plan: QueryPlan? = null,
+    options: MatchOptions = MatchOptions.DEFAULT,
+    budget: MatchBudget.Tracker? = null,
+    bindingOf: (GraphQueryVertex) -> MatchedNodes? = { null },
+): List<Map<GraphQueryVertex, List<MatchedNodes>>> =
+    listOf((plan?.edgesOf(queryV) ?: query.edgesOf(queryV)).map { qe ->
         val dir = if (query.getEdgeSource(qe) == queryV) Direction.FORWARDS else Direction.BACKWARDS
         val queryW = directionToEdgeFunction(query, dir)(qe)
         val additionalQueryW = if (dir == Direction.BACKWARDS)
@@ -23,49 +38,82 @@ fun possibleChildrenMatches(query: GraphQuery, graph: AnalysisGraph, queryV: Gra
                 .filter { it.matchType == GraphQueryEdgeMatchType.KLEENE }
                 .map(query::getEdgeSource)
         else listOf()
-        if (qe.matchType == GraphQueryEdgeMatchType.KLEENE && dir == Direction.BACKWARDS)
-            null // Not handling backwards Kleene edges.
-        else
-            Pair(
-                queryW, (
-                        if (qe.matchType == GraphQueryEdgeMatchType.KLEENE)
-                            kleeneTransitiveClosure(graph, qe, queryW, graphV, dir)
-                        else singleStep(graph, qe, queryW, graphV, dir) + additionalQueryW.flatMap {
-                            singleStep(
-                                graph,
-                                qe,
-                                it,
-                                graphV,
-                                dir
-                            )
-                        }
+        val existing = if (qe.matchType == GraphQueryEdgeMatchType.KLEENE) bindingOf(queryW) else null
+        Pair(
+            queryW, (
+                    if (qe.matchType == GraphQueryEdgeMatchType.KLEENE && dir == Direction.BACKWARDS)
+                        kleeneReachableBackwards(graph, qe, queryW, queryV, graphV, existing)
+                    else if (existing != null)
+                        kleeneBetween(graph, qe, queryW, graphV, existing, options, budget)
+                    else if (qe.matchType == GraphQueryEdgeMatchType.KLEENE && options.kleeneMode == KleeneMode.REACHABILITY)
+                        kleeneReachable(graph, qe, queryW, graphV)
+                    else if (qe.matchType == GraphQueryEdgeMatchType.KLEENE)
+                        kleeneTransitiveClosure(graph, qe, queryW, graphV, dir, budget)
+                    else singleStep(graph, qe, queryW, graphV, dir) + additionalQueryW.flatMap {
+                        singleStep(
+                            graph,
+                            qe,
+                            it,
+                            graphV,
+                            dir
                         )
-            )
-    }.toMap())
+                    }
+                    )
+        )
+    }.toMap().let { collectRepeatedLeaves(query, queryV, it) })
+
+/**
+ * A repeated vertex whose only edge is to [queryV] ends up bound to every one of its options anyway, so instead of
+ * one combination (and eventually one full match) per option, it gets a single option with all of them.
+ *
+ * Only leaves with a single edge are collected: the options of a vertex come from one of its edges to [queryV], and
+ * the others are only checked later against the node a vertex is bound to last, which would let the rest of the
+ * collected nodes through unchecked.
+ */
+private fun collectRepeatedLeaves(
+    query: GraphQuery,
+    queryV: GraphQueryVertex,
+    options: Map<GraphQueryVertex, List<MatchedNodes>>
+): Map<GraphQueryVertex, List<MatchedNodes>> {
+    fun isRepeatedLeaf(queryW: GraphQueryVertex) =
+        (queryW.mQuery as Metadata).options.contains(MetadataOption.Repeated) &&
+                query.edgesOf(queryW).singleOrNull()?.let {
+                    it.matchType != GraphQueryEdgeMatchType.KLEENE &&
+                            (query.getEdgeSource(it) == queryV || query.getEdgeTarget(it) == queryV)
+                } == true
+    if (options.keys.none(::isRepeatedLeaf))
+        return options
+    return options.mapValues { (queryW, matched) ->
+        if (matched.size > 1 && isRepeatedLeaf(queryW))
+            listOf(Either.Right(matched.flatMap(::matchedNodesOf).distinct()))
+        else matched
+    }
+}
 
-private fun originOrLast(it: MatchedNodes): AnalysisNode =
+internal fun originOrLast(it: MatchedNodes): AnalysisNode =
     when (it) {
         is Either.Left -> it.value; is Either.Right -> it.value.last()
     }
 
 fun singleStep(
-    graph: AnalysisGraph,
+    graph: AnalysisGraphView,
     queryE: GraphQueryEdge,
     queryW: GraphQueryVertex,
     graphV: AnalysisNode,
     dir: Direction,
 ): List<MatchedNodes> =
-    directionToEdgesOfFunction(graph, dir)(graphV)
+    candidateEdgesOf(graph, queryE, graphV, dir)
         .asSequence()
         .filter { e -> queryE.match(graph.getEdgeSource(e), e) }
         .map(directionToEdgeFunction(graph, dir)).map(::listOf).map { Either.Right(it) }
-        .filter { queryW.match(originOrLast(it)) }
+        .filter { graph.matches(queryW, originOrLast(it)) }
         .toList()
 
-private fun <V, E> directionToEdgesOfFunction(graph: Graph<V, E>, dir: Direction) = when (dir) {
-    Direction.FORWARDS -> graph::outgoingEdgesOf
-    Direction.BACKWARDS -> graph::incomingEdgesOf
-}
+private fun candidateEdgesOf(graph: AnalysisGraphView, queryE: GraphQueryEdge, graphV: AnalysisNode, dir: Direction) =
+    when (dir) {
+        Direction.FORWARDS -> graph.outgoingEdgesOf(graphV, queryE.constraint)
+        Direction.BACKWARDS -> graph.incomingEdgesOf(graphV, queryE.constraint)
+    }
 
 private fun <V, E> directionToEdgeFunction(graph: Graph<V, E>, dir: Direction) = when (dir) {
     Direction.FORWARDS -> graph::getEdgeTarget
@@ -73,11 +121,12 @@ private fun <V, E> directionToEdgeFunction(graph: Graph<V, E>, dir: Direction) =
 }
 
 fun kleeneTransitiveClosure(
-    graph: AnalysisGraph,
+    graph: AnalysisGraphView,
     queryE: GraphQueryEdge,
     queryW: GraphQueryVertex,
     graphStart: AnalysisNode,
     dir: Direction,
+    budget: MatchBudget.Tracker? = null,
 ): List<MatchedNodes> {
     assert(dir == Direction.FORWARDS) // TODO: Handle backwards Kleene?
     val queue = ArrayDeque<List<AnalysisNode>>()
@@ -87,16 +136,16 @@ fun kleeneTransitiveClosure(
     ret.addAll(firstSteps)
     queue.addAll(firstSteps.map { it.orNull()!! })
 
-    while (!queue.isEmpty()) {
+    while (!queue.isEmpty() && budget?.exhausted() != true) {
         val path = queue.removeFirst()
         val graphV = path.last()
         assert(path.indexOf(graphV) == path.size - 1)
         visited.add(graphV)
-        graph.outgoingEdgesOf(graphV)
+        graph.outgoingEdgesOf(graphV, queryE.constraint)
             .asSequence()
             .filter { e -> queryE.match(graphV, e) }
             .map(graph::getEdgeTarget)
-            .filter(queryW::match)
+            .filter { graph.matches(queryW, it) }
             .filterNot(path::contains)
             .map(path::plus)
             .forEach {
@@ -107,17 +156,140 @@ fun kleeneTransitiveClosure(
     return ret
 }
 
-fun permutations(options: Map<GraphQueryVertex, List<MatchedNodes>>): List<Map<GraphQueryVertex, MatchedNodes>> {
-    if (options.isEmpty())
-        return listOf(mapOf())
+/**
+ * [KleeneMode.REACHABILITY] counterpart of [kleeneTransitiveClosure]: the start node itself, and every node reachable
+ * from it once, with a witness path only if [queryW] captures it.
+ */
+fun kleeneReachable(
+    graph: AnalysisGraphView,
+    queryE: GraphQueryEdge,
+    queryW: GraphQueryVertex,
+    graphStart: AnalysisNode,
+): List<MatchedNodes> {
+    val reachability = graph.reachableFrom(graphStart, queryE, queryW)
+    val witness = queryW.captureGroup().isPresent
+    val ret = ArrayList<MatchedNodes>(reachability.nodes.size + 1)
+    ret.add(Either.Left(graphStart))
+    reachability.nodes.mapTo(ret) { Either.Right(if (witness) reachability.pathTo(it) else listOf(it)) }
+    return ret
+}
+
+/**
+ * Options for the source [queryW] of a Kleene edge traversed backwards from its target [queryV], bound to [graphEnd]:
+ * every node from which [graphEnd] is reachable, and [graphEnd] itself for the empty path. If [queryW] is already
+ * bound, its [existing] binding is the only option, and only if it is connected to [graphEnd].
+ *
+ * [queryV] is only bound to the end of the path here. Once [queryW] is bound, the edge is followed forwards again by
+ * [kleeneBetween], which rebinds [queryV] to the path (see [kleeneTargetsOf]), like when the edge is first followed
+ * forwards.
+ */
+fun kleeneReachableBackwards(
+    graph: AnalysisGraphView,
+    queryE: GraphQueryEdge,
+    queryW: GraphQueryVertex,
+    queryV: GraphQueryVertex,
+    graphEnd: AnalysisNode,
+    existing: MatchedNodes?,
+): List<MatchedNodes> {
+    if (existing != null) {
+        val source = originOrLast(existing)
+        return if (source == graphEnd || Reachability.connected(graph, source, graphEnd, queryE, queryV))
+            listOf(existing) else listOf()
+    }
+    // queryV may have been bound to a node matching queryW instead, which can only end the empty path
+    val sources = if (graph.matches(queryV, graphEnd)) graph.reachableTo(graphEnd, queryE, queryV).nodes else listOf()
+    return (sequenceOf(graphEnd) + sources)
+        .filter { graph.matches(queryW, it) }
+        .map { Either.Right(listOf(it)) }
+        .toList()
+}
+
+/**
+ * Options for the target [queryW] of a Kleene edge from [graphStart] when [queryW] is already bound to [existing]:
+ * the ones that agree with [existing], found by meeting in the middle rather than by enumerating everything reachable
+ * from [graphStart]. They are shaped like the options [kleeneTransitiveClosure] and [kleeneReachable] give when
+ * [queryW] isn't bound yet, e.g. [graphStart] itself for the empty path.
+ *
+ * With [KleeneMode.PATHS], there is one option per path, searched only through nodes that can still reach the end of
+ * [existing]. With [KleeneMode.REACHABILITY], there is a single option besides the empty path if the two are
+ * connected, with a witness path if [queryW] captures it.
+ */
+fun kleeneBetween(
+    graph: AnalysisGraphView,
+    queryE: GraphQueryEdge,
+    queryW: GraphQueryVertex,
+    graphStart: AnalysisNode,
+    existing: MatchedNodes,
+    options: MatchOptions,
+    budget: MatchBudget.Tracker? = null,
+): List<MatchedNodes> {
+    val graphEnd = originOrLast(existing)
+    val ret = ArrayList<MatchedNodes>()
+    if (graphEnd == graphStart)
+        ret.add(Either.Left(graphStart))
+
+    if (options.kleeneMode == KleeneMode.REACHABILITY) {
+        if (queryW.captureGroup().isPresent) {
+            val reachability = graph.reachableFrom(graphStart, queryE, queryW)
+            if (graphEnd in reachability)
+                ret.add(Either.Right(reachability.pathTo(graphEnd)))
+        } else if (Reachability.connected(graph, graphStart, graphEnd, queryE, queryW)) {
+            ret.add(Either.Right(listOf(graphEnd)))
+        }
+        return ret
+    }
+
+    val towardsEnd = graph.reachableTo(graphEnd, queryE, queryW)
+    val queue = ArrayDeque<List<AnalysisNode>>()
+    singleStep(graph, queryE, queryW, graphStart, Direction.FORWARDS)
+        .map { it.orNull()!! }
+        .filter { it.last() == graphEnd || it.last() in towardsEnd }
+        .forEach(queue::add)
+    while (queue.isNotEmpty() && budget?.exhausted() != true) {
+        val path = queue.removeFirst()
+        val graphV = path.last()
+        if (graphV == graphEnd) {
+            ret.add(Either.Right(path))
+            continue
+        }
+        graph.outgoingEdgesOf(graphV, queryE.constraint)
+            .asSequence()
+            .filter { e -> queryE.match(graphV, e) }
+            .map(graph::getEdgeTarget)
+            .filter { (it == graphEnd || it in towardsEnd) && graph.matches(queryW, it) }
+            .filterNot(path::contains)
+            .forEach { queue.add(path + it) }
+    }
+    return ret
+}
+
+fun permutations(options: Map<GraphQueryVertex, List<MatchedNodes>>): List<Map<GraphQueryVertex, MatchedNodes>> =
+    permutationsLazily(options).toList()
+
+/**
+ * Same combinations as [permutations], in the same order, enumerated as the sequence is consumed. Options rejected by
+ * [accept] are dropped before combining, so no combination containing them is ever built.
+ */
+fun permutationsLazily(
+    options: Map<GraphQueryVertex, List<MatchedNodes>>,
+    accept: (GraphQueryVertex, MatchedNodes) -> Boolean = { _, _ -> true },
+): Sequence<Map<GraphQueryVertex, MatchedNodes>> = sequence {
     val queryVertices = options.keys.toList()
-    val sets = queryVertices.map(options::getValue).map(Iterable<MatchedNodes>::toSet)
-    if (queryVertices.size <= 1) {
-        return sets[0].map { mapOf(Pair(queryVertices[0], it)) }
+    val choices = queryVertices.map { q -> options.getValue(q).distinct().filter { accept(q, it) } }
+    if (choices.any(List<MatchedNodes>::isEmpty))
+        return@sequence
+    val indices = IntArray(choices.size)
+    while (true) {
+        yield(queryVertices.indices.associate { Pair(queryVertices[it], choices[it][indices[it]]) })
+        // Last vertex changes fastest, like cartesianProduct
+        var i = choices.size - 1
+        while (i >= 0 && ++indices[i] == choices[i].size) {
+            indices[i] = 0
+            i--
+        }
+        if (i < 0)
+            return@sequence
     }
-    val permutations = cartesianProduct(*sets.toTypedArray())
-    // TODO: Filter repeats?
-    return permutations.map { queryVertices.zip(it).toMap() }
 }
 
 fun <T> cartesianProduct(vararg sets: Set<T>): Set<List<T>> =
@@ -129,7 +301,7 @@ fun <T> cartesianProduct(vararg sets: Set<T>): Set<List<T>> =
 
 fun bfsMatch(
     query: GraphQuery,
-    graph: AnalysisGraph,
+    graph: AnalysisGraphView,
     queryStart: GraphQueryVertex,
 ): List<Map<GraphQueryVertex, List<AnalysisNode>>> {
     if (!GraphTests.isConnected(query))
@@ -139,7 +311,83 @@ fun bfsMatch(
     if (metadata.options.contains(MetadataOption.Repeated))
         throw RuntimeException("Shouldn't start the BFS on a repeated node, pick another")
 
-    return graph.vertexSet().filter(queryStart::match).flatMap { bfsMatch(query, graph, queryStart, it) }
+    return graph.verticesOfType(queryStart.typeConstraint).filter { graph.matches(queryStart, it) }
+        .flatMap { bfsMatch(query, graph, queryStart, it) }
+}
+
+/**
+ * Match [query] on [graph] in the order chosen by [plan], recording the sizes of intermediate results in [statistics]
+ * if given.
+ */
+fun bfsMatch(
+    query: GraphQuery,
+    graph: AnalysisGraphView,
+    plan: QueryPlan,
+    statistics: MatchStatistics? = null,
+    options: MatchOptions = MatchOptions.DEFAULT,
+    budget: MatchBudget.Tracker? = null,
+): List<Map<GraphQueryVertex, List<AnalysisNode>>> =
+    bfsMatchLazily(query, graph, plan, statistics, options, budget).toList()
+
+/**
+ * Same matches as [bfsMatch], found as the sequence is consumed: the search stops when the consumer does. Matches of
+ * queries with repeated vertices are grouped per start node, so all the matches for one start node are found before
+ * the first of them is returned.
+ *
+ * The search also stops when [budget] runs out, leaving it flagged as truncated.
+ *
+ * [graph] must not change while the sequence is consumed.
+ */
+fun bfsMatchLazily(
+    query: GraphQuery,
+    graph: AnalysisGraphView,
+    plan: QueryPlan,
+    statistics: MatchStatistics? = null,
+    options: MatchOptions = MatchOptions.DEFAULT,
+    budget: MatchBudget.Tracker? = null,
+): Sequence<Map<GraphQueryVertex, List<AnalysisNode>>> {
+    return graph.verticesOfType(plan.start.typeConstraint).asSequence()
+        .takeWhile { budget?.exhausted() != true }
+        .filter { graph.matches(plan.start, it) }
+        .flatMap {
+            groupRepeatedLazily(query, fullMatches(query, graph, plan.start, it, plan, statistics, options, budget))
+        }
+}
+
+/**
+ * [groupRepeated] on a sequence. Without repeated vertices, grouping only drops duplicates, which doesn't need the
+ * whole sequence.
+ */
+internal fun groupRepeatedLazily(
+    query: GraphQuery,
+    matches: Sequence<Map<GraphQueryVertex, List<AnalysisNode>>>
+): Sequence<Map<GraphQueryVertex, List<AnalysisNode>>> =
+    if (query.vertexSet().any { (it.mQuery as Metadata).options.contains(MetadataOption.Repeated) })
+        sequence { yieldAll(RepeatedMatches(query).also { matches.forEach(it::add) }.results()) }
+    else matches.distinct()
+
+/**
+ * Whether binding a neighbour to [m] agrees with its [existing] binding, if any: both end at the same node.
+ */
+internal fun consistentBinding(existing: MatchedNodes?, m: MatchedNodes): Boolean =
+    existing == null || existing == m || originOrLast(existing) == originOrLast(m)
+
+/**
+ * Targets of the Kleene edges from [queryV] that are rebound when [queryV] is bound after them, e.g. after following
+ * the edge backwards: they are bound to the path from [queryV], like when the edge is followed forwards first. Targets
+ * with other edges to [queryV] keep their binding, as their options may come from those edges instead.
+ */
+internal fun kleeneTargetsOf(query: GraphQuery, queryV: GraphQueryVertex): Set<GraphQueryVertex> =
+    query.outgoingEdgesOf(queryV)
+        .asSequence()
+        .filter { it.matchType == GraphQueryEdgeMatchType.KLEENE }
+        .map(query::getEdgeTarget)
+        .filter { it != queryV && query.getAllEdges(queryV, it).size == 1 && query.getAllEdges(it, queryV).isEmpty() }
+        .toSet()
+
+internal fun matchedNodesOf(matched: MatchedNodes): List<AnalysisNode> = when (matched) {
+    is Either.Left -> listOf()
+    is Either.Right -> matched.value
 }
 
 data class WorkItem(
@@ -149,69 +397,128 @@ data class WorkItem(
 
 fun bfsMatch(
     query: GraphQuery,
-    graph: AnalysisGraph,
+    graph: AnalysisGraphView,
     queryStart: GraphQueryVertex,
     graphStart: AnalysisNode,
-): List<Map<GraphQueryVertex, List<AnalysisNode>>> {
-    val workset = ArrayDeque<WorkItem>()
-    possibleChildrenMatches(query, graph, queryStart, graphStart).map(::permutations).forEach { options ->
-        options.forEach {
-            workset.add(
-                WorkItem(
-                    mapOf(Pair(queryStart, Either.Right(listOf(graphStart)))),
-                    it.toList()
-                )
-            )
-        }
-    }
-    val fullMatches = mutableListOf<Map<GraphQueryVertex, List<AnalysisNode>>>()
+    plan: QueryPlan? = null,
+    statistics: MatchStatistics? = null,
+    options: MatchOptions = MatchOptions.DEFAULT,
+    budget: MatchBudget.Tracker? = null,
+): List<Map<GraphQueryVertex, List<AnalysisNode>>> =
+    groupRepeated(query, fullMatches(query, graph, queryStart, graphStart, plan, statistics, options, budget).toList())
 
+private fun fullMatches(
+    query: GraphQuery,
+    graph: AnalysisGraphView,
+    queryStart: GraphQueryVertex,
+    graphStart: AnalysisNode,
+    plan: QueryPlan?,
+    statistics: MatchStatistics?,
+    options: MatchOptions,
+    budget: MatchBudget.Tracker?,
+): Sequence<Map<GraphQueryVertex, List<AnalysisNode>>> = sequence {
+    val workset = ArrayDeque(initialWorkItems(query, graph, queryStart, graphStart, plan, statistics, options))
+    val keys = BindingKeys(query)
     while (!workset.isEmpty()) {
-        val (matches, queue) = workset.removeFirst()
-
-        if (queue.isEmpty()) {
-            assert(matches.size == query.vertexSet().size) { "matches.size != query.size, matches: $matches" }
-            fullMatches.add(matches.mapValues { (_, v) ->
-                when (v) {
-                    is Either.Left -> listOf()
-                    is Either.Right -> v.value
-                }
-            })
+        val item = workset.removeFirst()
+        if (!keys.firstSeen(keys.keyOf(item))) {
+            statistics?.suppressed()
             continue
         }
-        val (qV, gV) = queue.first()
-        val newMatches = matches.plus(queue.first())
-        val newQueue = queue.drop(1)
-        val childrenMatches = possibleChildrenMatches(query, graph, qV, originOrLast(gV)).map(::permutations)
-        childrenMatches.forEach { options ->
-            options.forEach { childrenMatch ->
-                if (childrenMatch.filter { newMatches.containsKey(it.key) }
-                        .all { (q, m) ->
-                            (newMatches[q] == m) /* normal case */ ||
-                                    (originOrLast(newMatches[q]!!) == m.orNull()
-                                        ?.last()) /* backward match to end of kleene */
-                        })
-                    workset.add(
-                        WorkItem(
-                            newMatches,
-                            newQueue.plus(childrenMatch.filterNot { newMatches.containsKey(it.key) }.toList())
-                        )
-                    )
-            }
+        if (budget?.state() == false)
+            break
+        statistics?.workItem()
+        if (item.queue.isEmpty()) {
+            if (budget?.match() == false)
+                break
+            yield(completeMatch(query, item, statistics))
+        } else {
+            workset.addAll(expand(query, graph, item, plan, statistics, options, budget))
         }
     }
+}
 
-    return groupRepeated(query, fullMatches)
+internal fun initialWorkItems(
+    query: GraphQuery,
+    graph: AnalysisGraphView,
+    queryStart: GraphQueryVertex,
+    graphStart: AnalysisNode,
+    plan: QueryPlan?,
+    statistics: MatchStatistics?,
+    options: MatchOptions,
+): List<WorkItem> {
+    statistics?.bound(queryStart, listOf(graphStart))
+    val matches = mapOf<GraphQueryVertex, MatchedNodes>(Pair(queryStart, Either.Right(listOf(graphStart))))
+    return possibleChildrenMatches(query, graph, queryStart, graphStart, plan, options)
+        .flatMap(::permutations)
+        .map { WorkItem(matches, it.toList()) }
+}
+
+/**
+ * Bind the first queued vertex of [item], giving the work items for each consistent way to queue its neighbours.
+ */
+internal fun expand(
+    query: GraphQuery,
+    graph: AnalysisGraphView,
+    item: WorkItem,
+    plan: QueryPlan?,
+    statistics: MatchStatistics?,
+    options: MatchOptions,
+    budget: MatchBudget.Tracker? = null,
+): List<WorkItem> {
+    val (matches, queue) = item
+    val (qV, gV) = queue.first()
+    val newMatches = matches.plus(queue.first())
+    val newQueue = queue.drop(1)
+    val rebound = kleeneTargetsOf(query, qV).filter(newMatches::containsKey)
+    statistics?.bound(qV, gV.orNull() ?: listOf())
+    return possibleChildrenMatches(query, graph, qV, originOrLast(gV), plan, options, budget, newMatches::get)
+        .flatMap { childOptions ->
+            permutationsLazily(childOptions) { q, m -> consistentBinding(newMatches[q], m) }.map { childrenMatch ->
+                WorkItem(
+                    if (rebound.isEmpty()) newMatches else newMatches + rebound.associateWith(childrenMatch::getValue),
+                    newQueue.plus(childrenMatch.filterNot { newMatches.containsKey(it.key) }.toList())
+                )
+            }
+        }
+}
+
+internal fun completeMatch(
+    query: GraphQuery,
+    item: WorkItem,
+    statistics: MatchStatistics?,
+): Map<GraphQueryVertex, List<AnalysisNode>> {
+    assert(item.matches.size == query.vertexSet().size) { "matches.size != query.size, matches: ${item.matches}" }
+    statistics?.matched()
+    return item.matches.mapValues { (_, v) -> matchedNodesOf(v) }
 }
 
 fun groupRepeated(
     query: GraphQuery,
     matches: List<Map<GraphQueryVertex, List<AnalysisNode>>>
-): List<Map<GraphQueryVertex, List<AnalysisNode>>> {
-    val repeatedQueryNodes = query.vertexSet()
+): List<Map<GraphQueryVertex, List<AnalysisNode>>> = RepeatedMatches(query).also { matches.forEach(it::add) }.results()
+
+/**
+ * Full matches grouped as they are found: one result per binding of the non-repeated vertices, with each repeated
+ * vertex bound to the nodes it was bound to in any match of the group, once each, in the order they were found.
+ */
+class RepeatedMatches(query: GraphQuery) {
+    private val repeated = query.vertexSet()
         .filter { (it.mQuery as Metadata).options.contains(MetadataOption.Repeated) }
-    return matches
-        .groupBy { match -> match.filterKeys { key -> !repeatedQueryNodes.contains(key) } }
-        .map { (key, value) -> key.entries + value.flatMap { it.filterKeys(repeatedQueryNodes::contains).entries } }
-        .map { match -> match.groupBy { it.key }.mapValues { (_, values) -> values.map { it.value }.flatten() } }
-}
\ No newline at end of file
+    private val nonRepeated = query.vertexSet().filterNot(repeated::contains)
+    private val groups = LinkedHashMap<List<List<AnalysisNode>>, List<MutableSet<AnalysisNode>>>()
+
+    fun add(match: Map<GraphQueryVertex, List<AnalysisNode>>) {
+        val key = nonRepeated.map { match[it] ?: listOf() }
+        val nodes = groups.getOrPut(key) { List(repeated.size) { LinkedHashSet() } }
+        repeated.forEachIndexed { i, v -> match[v]?.let(nodes[i]::addAll) }
+    }
+
+    fun results(): List<Map<GraphQueryVertex, List<AnalysisNode>>> =
+        groups.map { (key, nodes) ->
+            val result = LinkedHashMap<GraphQueryVertex, List<AnalysisNode>>()
+            nonRepeated.forEachIndexed { i, v -> result[v] = key[i] }
+            repeated.forEachIndexed { i, v -> result[v] = nodes[i].toList() }
+            result
+        }
+}
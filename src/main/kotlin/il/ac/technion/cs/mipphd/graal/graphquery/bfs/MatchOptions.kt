@@ -0,0 +1,33 @@
+package il.ac.technion.cs.mipphd.graal.graphquery.bfs
+
+enum class KleeneMode {
+    /**
+     * Every simple path through a Kleene edge is a separate match, and the target vertex is bound to the path.
+     */
+    PATHS,
+
+    /**
+     * Every node reachable through a Kleene edge is a single match. The target vertex is bound to a shortest path to
+     * the node if it has a capture group, and to the node alone otherwise. Reachable sets are memoized by the graph.
+     */
+    REACHABILITY,
+}
+
+/**
+ * @param parallelism Number of threads matching a query at once; 1 matches on the calling thread. With more, the
+ * matches are the same and always come out in the same order, but not in the order they come out on one thread (see
+ * [bfsMatchParallel]).
+ */
+data class MatchOptions @JvmOverloads constructor(
+    val kleeneMode: KleeneMode = KleeneMode.PATHS,
+    val parallelism: Int = 1,
+) {
+    init {
+        require(parallelism >= 1) { "parallelism must be positive, got $parallelism" }
+    }
+
+    companion object {
+        @JvmField
+        val DEFAULT = MatchOptions()
+    }
+}
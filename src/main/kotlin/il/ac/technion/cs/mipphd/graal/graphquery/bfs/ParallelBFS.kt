@@ -0,0 +1,152 @@
+package il.ac.technion.cs.mipphd.graal.graphquery.bfs
+
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisGraphView
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisNode
+import il.ac.technion.cs.mipphd.graal.graphquery.GraphQuery
+import il.ac.technion.cs.mipphd.graal.graphquery.GraphQueryVertex
+import il.ac.technion.cs.mipphd.graal.graphquery.MatchBudget
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveTask
+
+private typealias Match = Map<GraphQueryVertex, List<AnalysisNode>>
+
+/* Work items a task expands before handing half of its pending ones to another task */
+private const val SPLIT_THRESHOLD = 64
+
+/* Pools kept for parallelisms other than the common pool's, least recently used first */
+private const val MAX_POOLS = 4
+
+private val daemonThreads = ForkJoinPool.ForkJoinWorkerThreadFactory { pool ->
+    ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool).also { it.isDaemon = true }
+}
+
+private val pools = object : LinkedHashMap<Int, ForkJoinPool>(MAX_POOLS + 1, 0.75f, true) {
+    override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Int, ForkJoinPool>) = size > MAX_POOLS
+}
+
+/**
+ * The common pool if it has the right parallelism, otherwise a pool of daemon threads. Pools dropped from the cache
+ * aren't shut down, as a search may still be using them, but their idle threads exit on their own.
+ */
+private fun poolFor(parallelism: Int): ForkJoinPool {
+    if (parallelism == ForkJoinPool.getCommonPoolParallelism())
+        return ForkJoinPool.commonPool()
+    return synchronized(pools) {
+        pools.getOrPut(parallelism) { ForkJoinPool(parallelism, daemonThreads, null, false) }
+    }
+}
+
+/**
+ * Same matches as [bfsMatch], found on [MatchOptions.parallelism] threads of a [ForkJoinPool].
+ *
+ * Every start candidate is searched by its own task, and a task with many pending work items forks half of them into
+ * a new task, leaving idle threads to steal them. The tasks of one start candidate share its [BindingKeys], so a
+ * partial match is only expanded once whichever task finds it first. The matches of each start candidate are sorted
+ * by node index before grouping, and start candidates keep the order they have in [bfsMatch], so the matches come out
+ * in the same order on every run. That order differs from [bfsMatch]'s within a start candidate, which lists matches
+ * in the order the search finds them.
+ *
+ * Every task stops when [budget] runs out, leaving it flagged as truncated.
+ *
+ * [graph] must not change during the search.
+ */
+fun bfsMatchParallel(
+    query: GraphQuery,
+    graph: AnalysisGraphView,
+    plan: QueryPlan,
+    statistics: MatchStatistics? = null,
+    options: MatchOptions = MatchOptions.DEFAULT,
+    budget: MatchBudget.Tracker? = null,
+): List<Match> {
+    val search = ParallelSearch(query, graph, plan, statistics, options, budget)
+    return poolFor(options.parallelism).invoke(search.Candidates(graph.verticesOfType(plan.start.typeConstraint).toList()))
+}
+
+private class ParallelSearch(
+    val query: GraphQuery,
+    val graph: AnalysisGraphView,
+    val plan: QueryPlan,
+    val statistics: MatchStatistics?,
+    val options: MatchOptions,
+    val budget: MatchBudget.Tracker?,
+) {
+    private val vertices = query.vertexSet().toList()
+
+    /* Which task finds a match first depends on timing, so matches are sorted before grouping */
+    val canonicalOrder = Comparator<Match> { a, b ->
+        for (v in vertices) {
+            val order = compareNodes(a[v] ?: listOf(), b[v] ?: listOf())
+            if (order != 0)
+                return@Comparator order
+        }
+        0
+    }
+
+    /**
+     * Matches starting from [candidates], split in halves until a single candidate is left.
+     */
+    inner class Candidates(private val candidates: List<AnalysisNode>) : RecursiveTask<List<Match>>() {
+        override fun compute(): List<Match> {
+            if (candidates.size > 1) {
+                val second = Candidates(candidates.subList(candidates.size / 2, candidates.size)).fork()
+                val first = Candidates(candidates.subList(0, candidates.size / 2)).compute()
+                return first + second.join()
+            }
+            val graphStart = candidates.singleOrNull() ?: return listOf()
+            if (budget?.exhausted() == true || !graph.matches(plan.start, graphStart))
+                return listOf()
+            val items = initialWorkItems(query, graph, plan.start, graphStart, plan, statistics, options)
+            val matches = WorkItems(ArrayDeque(items), BindingKeys(query)).compute().sortedWith(canonicalOrder)
+            return groupRepeated(query, matches)
+        }
+    }
+
+    /**
+     * Full matches reachable from [workset], before grouping repeated vertices.
+     */
+    inner class WorkItems(
+        private val workset: ArrayDeque<WorkItem>,
+        private val keys: BindingKeys,
+    ) : RecursiveTask<List<Match>>() {
+        override fun compute(): List<Match> {
+            val matches = ArrayList<Match>()
+            val forked = ArrayList<WorkItems>()
+            var expanded = 0
+            while (workset.isNotEmpty()) {
+                if (expanded >= SPLIT_THRESHOLD && workset.size > 1) {
+                    val half = ArrayDeque<WorkItem>()
+                    repeat(workset.size / 2) { half.addFirst(workset.removeLast()) }
+                    forked.add(WorkItems(half, keys).also { it.fork() })
+                    expanded = 0
+                }
+                val item = workset.removeFirst()
+                if (!keys.firstSeen(keys.keyOf(item))) {
+                    statistics?.suppressed()
+                    continue
+                }
+                if (budget?.state() == false)
+                    break
+                statistics?.workItem()
+                if (item.queue.isEmpty()) {
+                    if (budget?.match() == false)
+                        break
+                    matches.add(completeMatch(query, item, statistics))
+                } else {
+                    workset.addAll(expand(query, graph, item, plan, statistics, options, budget))
+                    expanded++
+                }
+            }
+            forked.forEach { matches.addAll(it.join()) }
+            return matches
+        }
+    }
+}
+
+private fun compareNodes(a: List<AnalysisNode>, b: List<AnalysisNode>): Int {
+    for (i in 0 until minOf(a.size, b.size)) {
+        val order = compareValuesBy(a[i], b[i], { it.index }, { it.javaClass.name })
+        if (order != 0)
+            return order
+    }
+    return a.size.compareTo(b.size)
+}
@@ -0,0 +1,234 @@
+package il.ac.technion.cs.mipphd.graal.graphquery.bfs
+
+import il.ac.technion.cs.mipphd.graal.graphquery.*
+import org.jgrapht.GraphTests
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Order in which [bfsMatch] matches a query on a particular graph: the query vertex the search starts from and the
+ * order in which the edges of each query vertex are expanded.
+ *
+ * @param vertexEstimates Estimated number of graph nodes matching each query vertex.
+ * @param edgeEstimates Estimated number of graph edges matching each query edge, per graph node.
+ */
+class QueryPlan(
+    val query: GraphQuery,
+    val start: GraphQueryVertex,
+    val vertexEstimates: Map<GraphQueryVertex, Double>,
+    val edgeEstimates: Map<GraphQueryEdge, Double>,
+    private val expansionOrder: Map<GraphQueryVertex, List<GraphQueryEdge>>,
+) {
+    /**
+     * Edges of [queryV], cheapest neighbour first.
+     */
+    fun edgesOf(queryV: GraphQueryVertex): List<GraphQueryEdge> = expansionOrder.getValue(queryV)
+
+    /**
+     * Human readable description of the plan, with the actual sizes from [statistics] next to the estimates if given.
+     */
+    fun explain(statistics: MatchStatistics? = null): String = buildString {
+        appendLine("start: ${start.name} (estimated ${format(vertexEstimates.getValue(start))} candidates)")
+        for (v in query.vertexSet()) {
+            append("vertex ${v.name} [${v.label()}]: estimated ${format(vertexEstimates.getValue(v))}")
+            if (statistics != null)
+                append(", actual ${statistics.nodesBoundTo(v)} nodes in ${statistics.bindingsOf(v)} bindings")
+            appendLine()
+        }
+        for (v in query.vertexSet()) {
+            val order = edgesOf(v)
+            if (order.isNotEmpty())
+                appendLine("expand ${v.name}: ${order.joinToString(", ") { describe(it) }}")
+        }
+        for (e in query.edgeSet())
+            appendLine("edge ${describe(e)} [${e.label()}]: estimated ${format(edgeEstimates.getValue(e))} per node")
+        if (statistics != null)
+            appendLine(
+                "matches: ${statistics.matchCount} (${statistics.workItemCount} work items, " +
+                        "${statistics.duplicatesSuppressed} duplicates)"
+            )
+    }
+
+    override fun toString(): String = explain()
+
+    private fun describe(e: GraphQueryEdge) = "${query.getEdgeSource(e).name} -> ${query.getEdgeTarget(e).name}"
+
+    private fun format(estimate: Double) = "%.1f".format(estimate)
+}
+
+/**
+ * Sizes of the intermediate results of a match, to compare against the estimates of a [QueryPlan].
+ */
+class MatchStatistics {
+    private val nodes = ConcurrentHashMap<GraphQueryVertex, MutableSet<AnalysisNode>>()
+    private val bindings = ConcurrentHashMap<GraphQueryVertex, LongAdder>()
+    private val workItems = LongAdder()
+    private val matches = LongAdder()
+    private val duplicates = LongAdder()
+
+    /**
+     * Number of distinct graph nodes that were bound to [queryV] in some partial match.
+     */
+    fun nodesBoundTo(queryV: GraphQueryVertex): Int = nodes[queryV]?.size ?: 0
+
+    /**
+     * Number of partial matches that bound [queryV].
+     */
+    fun bindingsOf(queryV: GraphQueryVertex): Long = bindings[queryV]?.sum() ?: 0
+
+    val workItemCount: Long
+        get() = workItems.sum()
+
+    /**
+     * Number of full matches, before grouping the matches of repeated vertices.
+     */
+    val matchCount: Long
+        get() = matches.sum()
+
+    /**
+     * Number of partial matches that were skipped because the same partial match was already found.
+     */
+    val duplicatesSuppressed: Long
+        get() = duplicates.sum()
+
+    internal fun bound(queryV: GraphQueryVertex, graphNodes: List<AnalysisNode>) {
+        bindings.computeIfAbsent(queryV) { LongAdder() }.increment()
+        nodes.computeIfAbsent(queryV) { ConcurrentHashMap.newKeySet() }.addAll(graphNodes)
+    }
+
+    internal fun workItem() = workItems.increment()
+
+    internal fun matched() = matches.increment()
+
+    internal fun suppressed() = duplicates.increment()
+}
+
+/**
+ * Plans of queries on one graph, reused until the graph's [AnalysisGraphView.version] changes. Queries are told apart
+ * by identity, and must not change once planned.
+ */
+class PlanCache {
+    private class Key(val query: GraphQuery, val kleeneMode: KleeneMode) {
+        override fun equals(other: Any?) = other is Key && query === other.query && kleeneMode == other.kleeneMode
+        override fun hashCode() = System.identityHashCode(query) * 31 + kleeneMode.hashCode()
+    }
+
+    private var version = -1L
+    private val plans = HashMap<Key, QueryPlan>()
+
+    @Synchronized
+    fun get(query: GraphQuery, options: MatchOptions, version: Long, plan: () -> QueryPlan): QueryPlan {
+        if (version != this.version) {
+            plans.clear()
+            this.version = version
+        }
+        return plans.getOrPut(Key(query, options.kleeneMode), plan)
+    }
+}
+
+/**
+ * Picks a [QueryPlan] from graph statistics.
+ *
+ * The number of nodes matching a query vertex is the number of nodes of the right type, from the type index of the
+ * graph, times the fraction of a fixed size sample of those nodes that match the whole vertex query. Edges are
+ * estimated from the graph's histogram of edges by kind and label. Plans are cached in [AnalysisGraphView.plans]
+ * until the graph changes. The search starts from the least frequent non-repeated vertex, and expands the edges leading to the
+ * fewest candidates first.
+ *
+ * Kleene edges can be followed backwards, but a target reached that way is bound to the end of the path only, so with
+ * [KleeneMode.PATHS] the search still prefers a start from which every other query vertex can be reached following
+ * Kleene edges forwards. With [KleeneMode.REACHABILITY] the direction doesn't matter.
+ */
+object QueryPlanner {
+    private const val SAMPLE_SIZE = 256
+
+    @JvmStatic
+    @JvmOverloads
+    fun plan(query: GraphQuery, graph: AnalysisGraphView, options: MatchOptions = MatchOptions.DEFAULT): QueryPlan =
+        graph.plans.get(query, options, graph.version) { compute(query, graph, options) }
+
+    private fun compute(query: GraphQuery, graph: AnalysisGraphView, options: MatchOptions): QueryPlan {
+        if (!GraphTests.isConnected(query))
+            throw RuntimeException("Query is not weakly-connected - this is an error.")
+
+        val nodeCount = graph.vertexSet().size
+        val vertexEstimates = query.vertexSet().associateWith { estimateVertex(graph, it) }
+        val edgeEstimates = query.edgeSet().associateWith { e ->
+            graph.edgeCount(e.constraint).toDouble() / maxOf(nodeCount, 1)
+        }
+
+        fun cost(queryV: GraphQueryVertex, e: GraphQueryEdge): Double {
+            val queryW = if (query.getEdgeSource(e) == queryV) query.getEdgeTarget(e) else query.getEdgeSource(e)
+            return if (e.matchType == GraphQueryEdgeMatchType.KLEENE) vertexEstimates.getValue(queryW)
+            else edgeEstimates.getValue(e) * vertexEstimates.getValue(queryW) / maxOf(nodeCount, 1)
+        }
+
+        val expansionOrder = query.vertexSet().associateWith { queryV ->
+            val edges = query.edgesOf(queryV).toList()
+            val neighbourOf = { e: GraphQueryEdge ->
+                if (query.getEdgeSource(e) == queryV) query.getEdgeTarget(e) else query.getEdgeSource(e)
+            }
+            // Edges to the same neighbour keep their relative order, the last one is the one that gets matched
+            val neighbourCost = edges.groupBy(neighbourOf).mapValues { (_, es) -> es.minOf { cost(queryV, it) } }
+            edges.sortedBy { neighbourCost.getValue(neighbourOf(it)) }
+        }
+
+        val candidates = query.vertexSet().filterNot(::isRepeated)
+        if (candidates.isEmpty())
+            throw RuntimeException("Query has no non-repeated vertex to start the BFS from")
+        val start = (if (options.kleeneMode == KleeneMode.REACHABILITY) candidates
+        else candidates.filter { reachesAll(query, it) }.ifEmpty { candidates })
+            .minWith(compareBy<GraphQueryVertex> { vertexEstimates.getValue(it) }.thenBy { query.inDegreeOf(it) != 0 })
+
+        return QueryPlan(query, start, vertexEstimates, edgeEstimates, expansionOrder)
+    }
+
+    private fun isRepeated(v: GraphQueryVertex) =
+        (v.mQuery as Metadata).options.contains(MetadataOption.Repeated)
+
+    /* SAMPLE_SIZE nodes evenly spread over the candidates, or all of them if there are fewer */
+    private fun sampleOf(candidates: Collection<AnalysisNode>): Sequence<AnalysisNode> {
+        val size = candidates.size
+        if (size <= SAMPLE_SIZE)
+            return candidates.asSequence()
+        return candidates.asSequence().filterIndexed { i, _ -> i.toLong() * SAMPLE_SIZE % size < SAMPLE_SIZE }
+    }
+
+    private fun estimateVertex(graph: AnalysisGraphView, queryV: GraphQueryVertex): Double {
+        val constraint = queryV.typeConstraint
+        val candidateCount = graph.vertexCountOfType(constraint)
+        if (candidateCount == 0)
+            return 0.0
+        val sample = sampleOf(graph.verticesOfType(constraint))
+        var sampled = 0
+        var matched = 0
+        for (node in sample) {
+            sampled++
+            val isMatch = try {
+                graph.matches(queryV, node)
+            } catch (e: NotApplicableException) {
+                false // Like method().name on a node that isn't an invoke, the node doesn't match
+            } catch (e: RuntimeException) {
+                return candidateCount.toDouble() // The search may never try the query on such nodes
+            } catch (e: NotImplementedError) {
+                return candidateCount.toDouble() // Like name() on a node
+            }
+            if (isMatch)
+                matched++
+        }
+        return candidateCount.toDouble() * matched / sampled
+    }
+
+    /* Whether the BFS reaches every query vertex from start without following Kleene edges backwards */
+    private fun reachesAll(query: GraphQuery, start: GraphQueryVertex): Boolean {
+        val seen = mutableSetOf(start)
+        val queue = ArrayDeque(listOf(start))
+        while (queue.isNotEmpty()) {
+            val v = queue.removeFirst()
+            query.outgoingEdgesOf(v).map(query::getEdgeTarget).filter(seen::add).forEach(queue::add)
+            query.incomingEdgesOf(v).filter { it.matchType != GraphQueryEdgeMatchType.KLEENE }
+                .map(query::getEdgeSource).filter(seen::add).forEach(queue::add)
+        }
+        return seen.size == query.vertexSet().size
+    }
+}
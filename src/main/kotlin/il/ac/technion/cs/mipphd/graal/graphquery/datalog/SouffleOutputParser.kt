@@ -1,6 +1,6 @@
 package il.ac.technion.cs.mipphd.graal.graphquery.datalog
 
-import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisGraph
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisGraphView
 import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisNode
 import il.ac.technion.cs.mipphd.graal.graphquery.GraphQueryVertex
 import il.ac.technion.cs.mipphd.graal.graphquery.QueryResults
@@ -18,7 +18,7 @@ class SouffleOutputParser(private val filename: Path) {
 
     fun addSubparser(subparser: SouffleOutputParser): SouffleOutputParser = apply { subparsers.add(subparser) }
 
-    fun parse(graph: AnalysisGraph) : QueryResults =
+    fun parse(graph: AnalysisGraphView) : QueryResults =
         parseRaw(graph)
             .groupBy { it.first.first }
             .values
@@ -28,7 +28,7 @@ class SouffleOutputParser(private val filename: Path) {
             .map { it.mapValues { it.value.map(Pair<GraphQueryVertex, AnalysisNode>::second).toSet().toList() } }
             .toList()
 
-    private fun parseRaw(graph: AnalysisGraph): List<Pair<Key, List<Pair<GraphQueryVertex, AnalysisNode>>>> {
+    private fun parseRaw(graph: AnalysisGraphView): List<Pair<Key, List<Pair<GraphQueryVertex, AnalysisNode>>>> {
         val ret = mutableListOf<Pair<Key, List<Pair<GraphQueryVertex, AnalysisNode>>>>()
         val res = readFile(graph)
         if (this.subparsers.isEmpty())
@@ -45,13 +45,13 @@ class SouffleOutputParser(private val filename: Path) {
         return ret
     }
 
-    private fun parseSubparsers(graph: AnalysisGraph) = subparsers
+    private fun parseSubparsers(graph: AnalysisGraphView) = subparsers
         .asSequence()
         .flatMap { it.parseRaw(graph) }
         .map { it.first.second.toSet() to it.second }
         .toList()
 
-    private fun readFile(graph: AnalysisGraph): List<Pair<Key, List<Pair<GraphQueryVertex, AnalysisNode>>>> =
+    private fun readFile(graph: AnalysisGraphView): List<Pair<Key, List<Pair<GraphQueryVertex, AnalysisNode>>>> =
         filename.bufferedReader(Charsets.UTF_8).use { reader ->
             val lines = reader.lines().map { l -> l.split('\t').map(String::toUInt) }
             val idIndex = spec.indexOfFirst { it is IdSpec } // Assumes primary key exists and is unique
@@ -4,6 +4,7 @@ import il.ac.technion.cs.mipphd.graal.graphquery.*
 import java.nio.file.Files
 import java.nio.file.Path
 import java.nio.file.Paths
+import java.time.Duration
 import java.util.NavigableMap
 import java.util.TreeMap
 import java.util.concurrent.TimeUnit
@@ -11,12 +12,28 @@ import kotlin.io.path.isExecutable
 
 class SouffleException(msg: String, cause: Throwable? = null) : Exception(msg, cause)
 
+/**
+ * @param budget Limits on each execution. Souffle runs all the queries in one process, so only the timeout and the
+ * cancellation token apply, to the whole process, and running out of them gives empty truncated results. Without a
+ * timeout, the process is still stopped after 5 minutes, with a [SouffleException].
+ */
 class CompiledSouffleQuery(
     private val workDir: Path, private val binaryQuery: Path,
-    private val inputs: MutableMap<Path, (AnalysisGraph) -> StringBuilder>,
-    private val parsers: MutableList<Pair<GraphQuery, (AnalysisGraph) -> QueryResults>>
+    private val inputs: MutableMap<Path, (AnalysisGraphView) -> StringBuilder>,
+    private val parsers: MutableList<Pair<GraphQuery, (AnalysisGraphView) -> QueryResults>>,
+    private val budget: MatchBudget = MatchBudget.UNLIMITED
 ) : CompiledQuery {
-    override fun execute(graph: AnalysisGraph): Map<GraphQuery, QueryResults> {
+    companion object {
+        private val DEFAULT_TIMEOUT: Duration = Duration.ofMinutes(5)
+        private const val POLL_MILLIS = 100L
+    }
+
+    /* Wait for the process to die, so it doesn't write the output files of the next execution */
+    private fun kill(p: Process) {
+        p.destroyForcibly().waitFor()
+    }
+
+    override fun execute(graph: AnalysisGraphView): Map<GraphQuery, QueryResults> {
         for (input in inputs) {
             Files.newBufferedWriter(input.key, Charsets.UTF_8).use {
                 it.write(input.value(graph).toString())
@@ -33,9 +50,20 @@ class CompiledSouffleQuery(
             throw SouffleException("Could not execute Datalog script $binaryQuery with workdir=$workDir", e)
         }
 
-        if (!p.waitFor(5, TimeUnit.MINUTES)) {
-            p.destroy()
-            throw SouffleException("Datalog script subprocess did not complete within timeout")
+        // Without a timeout in the budget the process still gets DEFAULT_TIMEOUT, but running out of it is an error
+        val tracker = budget.start()
+        val deadline = System.nanoTime() + (budget.timeout ?: DEFAULT_TIMEOUT).toNanos()
+        while (!p.waitFor(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (tracker.exhausted()) {
+                kill(p)
+                return parsers.associate { (query, _) ->
+                    query to MatchTable.Builder(query.vertexSet().toList()).build(truncated = true)
+                }
+            }
+            if (System.nanoTime() - deadline >= 0) {
+                kill(p)
+                throw SouffleException("Datalog script subprocess did not complete within timeout")
+            }
         }
 
         if (p.exitValue() != 0) {
@@ -79,7 +107,9 @@ class SouffleQueryCompiler(
         private const val EDGE_RELATION = "Edge"
     }
 
-    override fun compile(queries: List<GraphQuery>): CompiledQuery {
+    override fun compile(queries: List<GraphQuery>): CompiledQuery = compile(queries, MatchBudget.UNLIMITED)
+
+    override fun compile(queries: List<GraphQuery>, budget: MatchBudget): CompiledQuery {
         val state = State(this)
 
         // Header: Types definitions
@@ -107,14 +137,14 @@ class SouffleQueryCompiler(
         // Done preparing the Datalog files, execute the compiler
         val binaryPath = executeSouffle(state)
 
-        return CompiledSouffleQuery(workDir, binaryPath, state.inputs, state.outputs)
+        return CompiledSouffleQuery(workDir, binaryPath, state.inputs, state.outputs, budget)
     }
 
     private data class State(
         val that: SouffleQueryCompiler,
         val buffer: MutableList<String> = mutableListOf(),
-        val inputs: MutableMap<Path, (AnalysisGraph) -> StringBuilder> = mutableMapOf(),
-        val outputs: MutableList<Pair<GraphQuery, (AnalysisGraph) -> QueryResults>> = mutableListOf(),
+        val inputs: MutableMap<Path, (AnalysisGraphView) -> StringBuilder> = mutableMapOf(),
+        val outputs: MutableList<Pair<GraphQuery, (AnalysisGraphView) -> QueryResults>> = mutableListOf(),
         var numOfQueries: Int = 0
     ) {
 
@@ -273,8 +303,9 @@ class SouffleQueryCompiler(
             state.emitDecl(relName(edge), listOf("src" to NODE_TYPE, "dst" to NODE_TYPE))
             state.emitInputDecl(relName(edge))
             val mQuery = edge.mQuery as Metadata
+            val constraint = edge.constraint
             state.inputs[relationToPath(relName(edge))] = { graph ->
-                serializeRelation(graph.edgeSet().asSequence().map { QueryTargetEdge(graph.getEdgeSource(it), it) }
+                serializeRelation(graph.edgesOf(constraint).map { QueryTargetEdge(graph.getEdgeSource(it), it) }
                     .filter(mQuery::interpret)
                     .map { listOf(it.source.index.toInt(), graph.getEdgeTarget(it.edge).index.toInt()) }.iterator())
             }
@@ -512,10 +543,10 @@ class SouffleQueryCompiler(
         }
     }
 
-    private fun serializeGraphNodes(graph: AnalysisGraph): StringBuilder =
+    private fun serializeGraphNodes(graph: AnalysisGraphView): StringBuilder =
         serializeRelation(graph.vertexSet().map { listOf(it.index.toInt(), it.nodeName) }.iterator())
 
-    private fun serializeGraphEdges(graph: AnalysisGraph): StringBuilder =
+    private fun serializeGraphEdges(graph: AnalysisGraphView): StringBuilder =
         serializeRelation(
             graph.edgeSet().map {
                 listOf(
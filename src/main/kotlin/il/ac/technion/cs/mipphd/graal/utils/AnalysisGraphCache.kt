@@ -0,0 +1,300 @@
+package il.ac.technion.cs.mipphd.graal.utils
+
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisEdge
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisGraph
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisNode
+import org.graalvm.compiler.nodes.StructuredGraph
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.lang.invoke.MethodType
+import java.lang.reflect.Method
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Content-addressed on-disk cache of analysis graphs.
+ *
+ * Entries are keyed by the method descriptor, a hash of the declaring class file, the [MethodToGraph] phase profile
+ * and the Graal version, so a changed method (or compiler) never hits a stale entry. Hits are loaded as
+ * graphs of [AnalysisNode.Cached] nodes, without parsing bytecode or touching JVMCI; misses are built with
+ * [methodToGraph], stored, and returned as-is.
+ *
+ * Profiles that inline also depend on the callees' classes, which the key doesn't cover, so each entry records the
+ * hashes of the classes declaring the methods inlined into it. An entry whose recorded classes have changed since is
+ * stale, and is rebuilt like a miss.
+ */
+class AnalysisGraphCache(
+    private val directory: Path,
+    private val methodToGraph: MethodToGraph = MethodToGraph()
+) {
+    data class Statistics(val hits: Long, val misses: Long, val uncacheable: Long, val corrupt: Long, val stale: Long)
+
+    /**
+     * Thrown by [readGraph] for an entry that depends on a class that has changed since it was written.
+     */
+    class StaleEntryException(message: String) : IOException(message)
+
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+    private val uncacheable = AtomicLong()
+    private val corrupt = AtomicLong()
+    private val stale = AtomicLong()
+
+    val statistics: Statistics
+        get() = Statistics(hits.get(), misses.get(), uncacheable.get(), corrupt.get(), stale.get())
+
+    init {
+        Files.createDirectories(directory)
+    }
+
+    fun getAnalysisGraph(method: Method): AnalysisGraph {
+        // Read once, so that the graph is built with the profile of its key even if it's changed meanwhile
+        val profile = methodToGraph.profile
+        val key = keyOf(method, profile)
+        if (key == null) {
+            uncacheable.incrementAndGet()
+            return methodToGraph.getAnalysisGraph(method, profile)
+        }
+
+        // Inlined classes are resolved like the method resolved them
+        val loader = method.declaringClass.classLoader
+        val entry = directory.resolve("$key$EXTENSION")
+        if (Files.isRegularFile(entry)) {
+            try {
+                val graph = DataInputStream(BufferedInputStream(Files.newInputStream(entry))).use { input ->
+                    readGraph(input) { className, hash -> classHash(className, loader) == hash }
+                }
+                hits.incrementAndGet()
+                return graph
+            } catch (e: StaleEntryException) {
+                stale.incrementAndGet() // Rebuild and overwrite below
+            } catch (e: IOException) {
+                corrupt.incrementAndGet() // Rebuild and overwrite below
+            }
+        }
+
+        val inlined = linkedSetOf<String>()
+        val graph = methodToGraph.getAnalysisGraph(method, profile, inlined)
+        val dependencies = inlined.associateWith { classHash(it, loader) }
+        if (dependencies.values.any(String::isEmpty)) {
+            uncacheable.incrementAndGet() // Inlined a generated class, we can't tell when it changes
+            return graph
+        }
+
+        misses.incrementAndGet()
+        val temp = Files.createTempFile(directory, key, ".tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(Files.newOutputStream(temp))).use { writeGraph(graph, it, dependencies) }
+            Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } finally {
+            Files.deleteIfExists(temp)
+        }
+        return graph
+    }
+
+    fun clear() {
+        Files.list(directory).use { entries ->
+            entries.filter { it.fileName.toString().endsWith(EXTENSION) }.forEach(Files::delete)
+        }
+    }
+
+    private fun keyOf(method: Method, profile: PhaseProfile): String? {
+        val classHash = classFileHash.get(method.declaringClass)
+        if (classHash.isEmpty())
+            return null // Generated class, we can't tell when it changes
+        val descriptor = MethodType.methodType(method.returnType, method.parameterTypes).toMethodDescriptorString()
+
+        val digest = MessageDigest.getInstance("SHA-256")
+        listOf(
+            FORMAT_VERSION.toString(),
+            "${method.declaringClass.name}.${method.name}$descriptor",
+            classHash,
+            profile.name,
+            graalVersion
+        ).forEach { digest.update(it.toByteArray(Charsets.UTF_8)); digest.update(0) }
+        return digest.digest().joinToString("") { "%02x".format(it) }
+    }
+
+    companion object {
+        private const val MAGIC = 0x41475246 // "AGRF"
+        private const val FORMAT_VERSION = 2
+        private const val EXTENSION = ".agraph"
+
+        private const val EDGE_DATA: Byte = 0
+        private const val EDGE_PHI: Byte = 1
+        private const val EDGE_CONTROL: Byte = 2
+        private const val EDGE_ASSOCIATION: Byte = 3
+
+        private val graalVersion: String =
+            "${StructuredGraph::class.java.`package`?.implementationVersion}/${System.getProperty("java.vm.version")}"
+
+        private val classFileHash = object : ClassValue<String>() {
+            override fun computeValue(type: Class<*>): String {
+                val bytes = type.getResourceAsStream("/${type.name.replace('.', '/')}.class")?.use { it.readBytes() }
+                    ?: return ""
+                return MessageDigest.getInstance("SHA-256").digest(bytes).joinToString("") { "%02x".format(it) }
+            }
+        }
+
+        private fun classHash(className: String, loader: ClassLoader?): String =
+            try {
+                classFileHash.get(Class.forName(className, false, loader))
+            } catch (e: ClassNotFoundException) {
+                ""
+            }
+
+        private val graalSuperTypes = object : ClassValue<List<String>>() {
+            override fun computeValue(type: Class<*>): List<String> {
+                val seen = linkedSetOf<Class<*>>()
+                val queue = ArrayDeque(listOf(type))
+                while (queue.isNotEmpty()) {
+                    val c = queue.removeFirst()
+                    if (!seen.add(c))
+                        continue
+                    c.superclass?.let(queue::add)
+                    queue.addAll(c.interfaces)
+                }
+                return seen.map(Class<*>::getName).filter { it.startsWith(AnalysisNode.Cached.NODES_PACKAGE) }
+            }
+        }
+
+        /**
+         * Write [graph] in the cache's binary format. Only graphs made of IR (or cached IR) nodes are supported.
+         * [dependencies] are the names and class file hashes of the classes [graph] was built from, checked by
+         * [readGraph].
+         */
+        fun writeGraph(graph: AnalysisGraph, output: DataOutputStream, dependencies: Map<String, String> = emptyMap()) {
+            val strings = linkedMapOf<String, Int>()
+            val typeLists = linkedMapOf<List<Int>, Int>()
+            fun string(s: String) = strings.getOrPut(s) { strings.size }
+            fun typeList(types: List<String>) = typeLists.getOrPut(types.map(::string)) { typeLists.size }
+
+            val vertices = graph.vertexSet().toList()
+            val ordinals = HashMap<AnalysisNode, Int>(vertices.size * 2)
+            val vertexRecords = IntArray(vertices.size * VERTEX_RECORD_SIZE)
+            for ((i, v) in vertices.withIndex()) {
+                ordinals[v] = i
+                val (types, target) = when (v) {
+                    is AnalysisNode.IR -> Pair(
+                        graalSuperTypes.get(v.node().javaClass),
+                        if (NodeWrapperUtils.isInvoke(v)) NodeWrapperUtils.getTargetMethod(v)
+                            .let { Pair(it.declaringClassName, it.name) } else null
+                    )
+
+                    is AnalysisNode.Cached -> Pair(v.superTypes, v.targetMethod)
+                    else -> throw IllegalArgumentException("Can't persist $v, only IR nodes are supported")
+                }
+                val offset = i * VERTEX_RECORD_SIZE
+                vertexRecords[offset] = v.index.toInt()
+                vertexRecords[offset + 1] = string(if (v is AnalysisNode.IR) v.type else (v as AnalysisNode.Cached).type)
+                vertexRecords[offset + 2] = string(v.description())
+                vertexRecords[offset + 3] = typeList(types)
+                vertexRecords[offset + 4] = target?.first?.let(::string) ?: -1
+                vertexRecords[offset + 5] = target?.second?.let(::string) ?: -1
+            }
+            val edges = graph.edgeSet()
+            edges.forEach { string(it.label) }
+
+            output.writeInt(MAGIC)
+            output.writeInt(FORMAT_VERSION)
+
+            output.writeInt(dependencies.size)
+            for ((className, hash) in dependencies) {
+                output.writeUTF(className)
+                output.writeUTF(hash)
+            }
+
+            output.writeInt(strings.size)
+            strings.keys.forEach(output::writeUTF)
+
+            output.writeInt(typeLists.size)
+            for (types in typeLists.keys) {
+                output.writeInt(types.size)
+                types.forEach(output::writeInt)
+            }
+
+            output.writeInt(vertices.size)
+            vertexRecords.forEach(output::writeInt)
+
+            output.writeInt(edges.size)
+            for (e in edges) {
+                output.writeInt(ordinals.getValue(graph.getEdgeSource(e)))
+                output.writeInt(ordinals.getValue(graph.getEdgeTarget(e)))
+                output.writeByte(
+                    when (e) {
+                        is AnalysisEdge.PureData -> EDGE_DATA
+                        is AnalysisEdge.Phi -> EDGE_PHI
+                        is AnalysisEdge.Control -> EDGE_CONTROL
+                        is AnalysisEdge.Association -> EDGE_ASSOCIATION
+                        else -> throw IllegalArgumentException("Can't persist $e, only IR edges are supported")
+                    }.toInt()
+                )
+                output.writeInt(strings.getValue(e.label))
+                if (e is AnalysisEdge.Phi)
+                    output.writeInt(ordinals.getValue(e.from))
+            }
+        }
+
+        /**
+         * Read a graph written by [writeGraph]. All nodes of the result are [AnalysisNode.Cached].
+         *
+         * @throws StaleEntryException if [isCurrent] rejects one of its dependencies, before reading the graph itself
+         */
+        fun readGraph(
+            input: DataInputStream,
+            isCurrent: (className: String, hash: String) -> Boolean = { _, _ -> true }
+        ): AnalysisGraph {
+            if (input.readInt() != MAGIC)
+                throw IOException("Not an analysis graph cache entry")
+            if (input.readInt() != FORMAT_VERSION)
+                throw IOException("Unsupported analysis graph cache entry version")
+
+            repeat(input.readInt()) {
+                val className = input.readUTF()
+                if (!isCurrent(className, input.readUTF()))
+                    throw StaleEntryException("$className has changed")
+            }
+
+            val strings = Array(input.readInt()) { input.readUTF() }
+            val typeLists = Array(input.readInt()) { List(input.readInt()) { strings[input.readInt()] } }
+
+            val graph = AnalysisGraph()
+            val vertices = Array(input.readInt()) {
+                val index = input.readInt().toUInt()
+                val type = strings[input.readInt()]
+                val text = strings[input.readInt()]
+                val types = typeLists[input.readInt()]
+                val targetClass = input.readInt()
+                val targetName = input.readInt()
+                AnalysisNode.Cached(
+                    index, type, text, types,
+                    if (targetClass < 0) null else Pair(strings[targetClass], strings[targetName])
+                ).also(graph::addVertex)
+            }
+
+            repeat(input.readInt()) {
+                val source = vertices[input.readInt()]
+                val target = vertices[input.readInt()]
+                val kind = input.readByte()
+                val label = strings[input.readInt()]
+                val edge = when (kind) {
+                    EDGE_DATA -> AnalysisEdge.PureData(label)
+                    EDGE_PHI -> AnalysisEdge.Phi(label, vertices[input.readInt()])
+                    EDGE_CONTROL -> AnalysisEdge.Control(label)
+                    EDGE_ASSOCIATION -> AnalysisEdge.Association(label)
+                    else -> throw IOException("Unexpected edge kind $kind")
+                }
+                graph.addEdge(source, target, edge)
+            }
+            return graph
+        }
+
+        private const val VERTEX_RECORD_SIZE = 6
+    }
+}
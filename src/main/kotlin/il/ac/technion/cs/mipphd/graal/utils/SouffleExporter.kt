@@ -27,6 +27,7 @@ class SouffleExporter : BaseExporter<AnalysisNode, AnalysisEdge>(IntegerIdProvid
         for (v in g.vertexSet()) {
             val name = when(v) {
                 is AnalysisNode.IR -> v.type
+                is AnalysisNode.Cached -> v.type
                 else -> v.description()
             }
             out.print("Node")
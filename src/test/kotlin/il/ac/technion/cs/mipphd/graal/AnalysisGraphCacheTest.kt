@@ -0,0 +1,104 @@
+package il.ac.technion.cs.mipphd.graal
+
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisNode
+import il.ac.technion.cs.mipphd.graal.graphquery.AnyHolder
+import il.ac.technion.cs.mipphd.graal.graphquery.GraphQuery
+import il.ac.technion.cs.mipphd.graal.graphquery.Listable
+import il.ac.technion.cs.mipphd.graal.graphquery.anyHolder2
+import il.ac.technion.cs.mipphd.graal.graphquery.repeatedNodesQueryText
+import il.ac.technion.cs.mipphd.graal.utils.AnalysisGraphCache
+import il.ac.technion.cs.mipphd.graal.utils.MethodToGraph
+import il.ac.technion.cs.mipphd.graal.utils.PhaseProfile
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.security.MessageDigest
+import kotlin.io.path.createTempDirectory
+import kotlin.io.path.listDirectoryEntries
+import kotlin.io.path.readBytes
+import kotlin.io.path.writeBytes
+import kotlin.reflect.jvm.javaMethod
+
+internal class AnalysisGraphCacheTest {
+    private val methodToGraph = MethodToGraph(PhaseProfile.CANONICALIZE)
+    private val maximum = Listable::maximum.javaMethod!!
+
+    @Test
+    fun `second lookup is a hit and restores the same graph`() {
+        val cache = AnalysisGraphCache(createTempDirectory("graph-cache"), methodToGraph)
+
+        val built = cache.getAnalysisGraph(maximum)
+        val loaded = cache.getAnalysisGraph(maximum)
+
+        assertEquals(AnalysisGraphCache.Statistics(1, 1, 0, 0, 0), cache.statistics)
+        assertTrue(loaded.vertexSet().all { it is AnalysisNode.Cached })
+        assertEquals(built.vertexSet().map { it.index }.toSet(), loaded.vertexSet().map { it.index }.toSet())
+        assertEquals(built.edgeSet().size, loaded.edgeSet().size)
+    }
+
+    @Test
+    fun `queries match cached graphs like built graphs`() {
+        val cache = AnalysisGraphCache(createTempDirectory("graph-cache"), methodToGraph)
+        val query = GraphQuery.importQuery(repeatedNodesQueryText)
+
+        val built = cache.getAnalysisGraph(maximum)
+        val loaded = cache.getAnalysisGraph(maximum)
+
+        assertEquals(query.match(built).size, query.match(loaded).size)
+    }
+
+    @Test
+    fun `cached nodes resolve types like IR nodes`() {
+        val cache = AnalysisGraphCache(createTempDirectory("graph-cache"), methodToGraph)
+
+        val built = cache.getAnalysisGraph(maximum).vertexSet().associateBy { it.index }
+        val loaded = cache.getAnalysisGraph(maximum).vertexSet()
+
+        for (node in loaded) {
+            val ir = built.getValue(node.index)
+            for (name in listOf("FixedNode", "calc.AddNode", "org.graalvm.compiler.nodes.ReturnNode")) {
+                assertEquals(ir.isType(name), node.isType(name)) { "$node is $name" }
+            }
+        }
+        assertThrows<RuntimeException> { loaded.first().isType("NoSuchNode") }
+    }
+
+    @Test
+    fun `inlining profiles are cached`() {
+        val cache = AnalysisGraphCache(createTempDirectory("graph-cache"), MethodToGraph(PhaseProfile.HIGH_TIER))
+
+        val built = cache.getAnalysisGraph(maximum)
+        val loaded = cache.getAnalysisGraph(maximum)
+
+        assertEquals(AnalysisGraphCache.Statistics(1, 1, 0, 0, 0), cache.statistics)
+        assertEquals(built.vertexSet().map { it.index }.toSet(), loaded.vertexSet().map { it.index }.toSet())
+    }
+
+    @Test
+    fun `entries are stale once an inlined class changes`() {
+        val directory = createTempDirectory("graph-cache")
+        val cache = AnalysisGraphCache(directory, MethodToGraph(PhaseProfile.HIGH_TIER))
+        val method = ::anyHolder2.javaMethod!!
+
+        cache.getAnalysisGraph(method)
+        cache.getAnalysisGraph(method)
+        assertEquals(AnalysisGraphCache.Statistics(1, 1, 0, 0, 0), cache.statistics)
+
+        // The constructor of AnyHolder is inlined, pretend it has changed since
+        val hash = AnyHolder::class.java.getResourceAsStream("AnyHolder.class")!!.use { it.readBytes() }
+            .let { MessageDigest.getInstance("SHA-256").digest(it) }
+            .joinToString("") { "%02x".format(it) }
+            .toByteArray(Charsets.UTF_8)
+        val entry = directory.listDirectoryEntries("*.agraph").single()
+        val bytes = entry.readBytes()
+        val offset = (0..bytes.size - hash.size).first { bytes.copyOfRange(it, it + hash.size).contentEquals(hash) }
+        "0".repeat(hash.size).toByteArray(Charsets.UTF_8).copyInto(bytes, offset)
+        entry.writeBytes(bytes)
+
+        cache.getAnalysisGraph(method)
+        assertEquals(AnalysisGraphCache.Statistics(1, 2, 0, 0, 1), cache.statistics)
+        cache.getAnalysisGraph(method)
+        assertEquals(AnalysisGraphCache.Statistics(2, 2, 0, 0, 1), cache.statistics)
+    }
+}
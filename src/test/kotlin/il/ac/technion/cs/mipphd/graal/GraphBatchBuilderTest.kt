@@ -0,0 +1,53 @@
+package il.ac.technion.cs.mipphd.graal
+
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisGraph
+import il.ac.technion.cs.mipphd.graal.graphquery.Listable
+import il.ac.technion.cs.mipphd.graal.utils.GraphBatchBuilder
+import il.ac.technion.cs.mipphd.graal.utils.MethodToGraph
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import kotlin.reflect.jvm.javaMethod
+
+internal class GraphBatchBuilderTest {
+    private val methodToGraph = MethodToGraph()
+    private val methods = listOf(
+        Listable::maximum.javaMethod!!,
+        ::simpleFib.javaMethod!!,
+        AddTwoNumbers::class.java.methods.find { it.name == "add" }!!,
+        Fib::class.java.methods.find { it.name == "fib" }!!,
+    )
+
+    @Test
+    fun `builds all methods in parallel like sequential building`() {
+        val results = GraphBatchBuilder(methodToGraph, 4).use { builder ->
+            builder.buildAll(methods).toList()
+        }
+
+        assertEquals(methods.toSet(), results.map { it.method }.toSet())
+        for (result in results) {
+            assertTrue(result.isSuccess) { "${result.method} failed: ${result.error}" }
+            val sequential = methodToGraph.getAnalysisGraph(result.method)
+            assertEquals(verticesOf(sequential), verticesOf(result.graph)) { "Vertices of ${result.method}" }
+            assertEquals(edgesOf(sequential), edgesOf(result.graph)) { "Edges of ${result.method}" }
+        }
+    }
+
+    @Test
+    fun `failing method does not affect the others`() {
+        val abstractMethod = List::class.java.getMethod("size")
+        val results = GraphBatchBuilder(methodToGraph, 2).use { builder ->
+            builder.buildAll(methods + abstractMethod).toList()
+        }
+
+        assertEquals(methods.size + 1, results.size)
+        assertFalse(results.single { it.method == abstractMethod }.isSuccess)
+        assertTrue(results.filterNot { it.method == abstractMethod }.all { it.isSuccess })
+    }
+
+    private fun verticesOf(graph: AnalysisGraph) =
+        graph.vertexSet().map { "${it.index} ${it.description()}" }.sorted()
+
+    private fun edgesOf(graph: AnalysisGraph) = graph.edgeSet().map {
+        "${graph.getEdgeSource(it).index} -> ${graph.getEdgeTarget(it).index} ${it.javaClass.simpleName} ${it.label}"
+    }.sorted()
+}
@@ -1,7 +1,12 @@
 package il.ac.technion.cs.mipphd.graal
 
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisEdge
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisGraph
 import il.ac.technion.cs.mipphd.graal.utils.MethodToGraph
+import il.ac.technion.cs.mipphd.graal.utils.PhaseProfile
 import il.ac.technion.cs.mipphd.graal.utils.SourcePosTool
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.Test
 import kotlin.reflect.jvm.javaMethod
 
@@ -33,6 +38,46 @@ class Fib {
     }
 }
 
+fun wideSwitch(n: Int): Int {
+    var a = 0
+    var b = 0
+    when (n) {
+        0 -> { a = n + 0; b = n * 1 }
+        1 -> { a = n + 1; b = n * 2 }
+        2 -> { a = n + 2; b = n * 3 }
+        3 -> { a = n + 3; b = n * 4 }
+        4 -> { a = n + 4; b = n * 5 }
+        5 -> { a = n + 5; b = n * 6 }
+        6 -> { a = n + 6; b = n * 7 }
+        7 -> { a = n + 7; b = n * 8 }
+        8 -> { a = n + 8; b = n * 9 }
+        9 -> { a = n + 9; b = n * 10 }
+        10 -> { a = n + 10; b = n * 11 }
+        11 -> { a = n + 11; b = n * 12 }
+        12 -> { a = n + 12; b = n * 13 }
+        13 -> { a = n + 13; b = n * 14 }
+        14 -> { a = n + 14; b = n * 15 }
+        15 -> { a = n + 15; b = n * 16 }
+        16 -> { a = n + 16; b = n * 17 }
+        17 -> { a = n + 17; b = n * 18 }
+        18 -> { a = n + 18; b = n * 19 }
+        19 -> { a = n + 19; b = n * 20 }
+        20 -> { a = n + 20; b = n * 21 }
+        21 -> { a = n + 21; b = n * 22 }
+        22 -> { a = n + 22; b = n * 23 }
+        23 -> { a = n + 23; b = n * 24 }
+        24 -> { a = n + 24; b = n * 25 }
+        25 -> { a = n + 25; b = n * 26 }
+        26 -> { a = n + 26; b = n * 27 }
+        27 -> { a = n + 27; b = n * 28 }
+        28 -> { a = n + 28; b = n * 29 }
+        29 -> { a = n + 29; b = n * 30 }
+        30 -> { a = n + 30; b = n * 31 }
+        31 -> { a = n + 31; b = n * 32 }
+    }
+    return a + b
+}
+
 internal class MethodToGraphTest {
     val methodToGraph = MethodToGraph(false)
     val addNumbersMethod = AddTwoNumbers::class.java.methods[0]
@@ -55,6 +100,39 @@ internal class MethodToGraphTest {
         println(graph.export())
     }
 
+    @Test
+    fun `every phase profile builds a graph and records phase times`() {
+        for (profile in PhaseProfile.values()) {
+            val profiled = MethodToGraph(profile)
+            profiled.getAnalysisGraph(fibMethod)
+            profiled.getAnalysisGraph(fibMethod)
+
+            val timings = profiled.getPhaseTimings(profile)
+            println("$profile: $timings")
+            assertEquals(2, timings.getRuns("GraphBuilderPhase"))
+            assertTrue(profile == PhaseProfile.PARSE_ONLY || timings.totalTimes.size > 1)
+        }
+    }
+
+    @Test
+    fun `phi values of a high fan-in merge come from the merge's ends`() {
+        val cfg = methodToGraph.getCFG(::wideSwitch.javaMethod)
+        repeat(10) { AnalysisGraph.fromGraal(cfg.asCFG()) } // warm up
+        val start = System.nanoTime()
+        val graph = AnalysisGraph.fromGraal(cfg.asCFG())
+        println("Converted ${graph.vertexSet().size} nodes in ${(System.nanoTime() - start) / 1000} us")
+
+        val phiEdges = graph.edgeSet().filterIsInstance<AnalysisEdge.Phi>()
+        assertTrue(phiEdges.size >= 64)
+        for (edge in phiEdges) {
+            val phi = graph.getEdgeTarget(edge)
+            val merge = graph.incomingEdgesOf(phi).single { it.label == "merge" }.let(graph::getEdgeSource)
+            assertTrue(graph.getAllEdges(edge.from, merge).any { it is AnalysisEdge.Control }) {
+                "$edge does not come from an end of $merge"
+            }
+        }
+    }
+
     @Test
     fun `get cfg does not throw exception`() {
         methodToGraph.getCFG(addNumbersMethod)
@@ -0,0 +1,39 @@
+package il.ac.technion.cs.mipphd.graal
+
+import il.ac.technion.cs.mipphd.graal.utils.NodeTypeCache
+import org.graalvm.compiler.nodes.FixedNode
+import org.graalvm.compiler.nodes.ReturnNode
+import org.graalvm.compiler.nodes.calc.AddNode
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+
+internal class NodeTypeCacheTest {
+    init {
+        // Make sure the packages are loaded, lookup only goes through loaded packages
+        AddNode::class.java
+        ReturnNode::class.java
+    }
+
+    @Test
+    fun `simple, relative and qualified names resolve`() {
+        assertTrue(NodeTypeCache.isType(AddNode::class.java, "AddNode"))
+        assertTrue(NodeTypeCache.isType(AddNode::class.java, "calc.AddNode"))
+        assertTrue(NodeTypeCache.isType(AddNode::class.java, "org.graalvm.compiler.nodes.calc.AddNode"))
+    }
+
+    @Test
+    fun `super types match and unrelated types don't, repeatedly`() {
+        repeat(2) {
+            assertTrue(NodeTypeCache.isType(ReturnNode::class.java, "FixedNode"))
+            assertFalse(NodeTypeCache.isType(FixedNode::class.java, "ReturnNode"))
+            assertFalse(NodeTypeCache.isType(AddNode::class.java, "ReturnNode"))
+        }
+    }
+
+    @Test
+    fun `unknown type names throw`() {
+        assertThrows<RuntimeException> { NodeTypeCache.isType(AddNode::class.java, "NoSuchNode") }
+    }
+}
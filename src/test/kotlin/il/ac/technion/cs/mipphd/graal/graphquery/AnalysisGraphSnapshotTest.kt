@@ -0,0 +1,77 @@
+package il.ac.technion.cs.mipphd.graal.graphquery
+
+import il.ac.technion.cs.mipphd.graal.utils.MethodToGraph
+import il.ac.technion.cs.mipphd.graal.utils.SouffleExporter
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.io.StringWriter
+import kotlin.reflect.jvm.javaMethod
+
+internal class AnalysisGraphSnapshotTest {
+    private val methodToGraph = MethodToGraph()
+    private val maximumGraph = methodToGraph.getAnalysisGraph(Listable::maximum.javaMethod)
+    private val snapshot = maximumGraph.snapshot()
+
+    @Test
+    fun `snapshot has the same vertices, edges and incidence`() {
+        assertEquals(maximumGraph.vertexSet(), snapshot.vertexSet())
+        assertEquals(maximumGraph.edgeSet(), snapshot.edgeSet())
+        for (e in maximumGraph.edgeSet()) {
+            assertSame(maximumGraph.getEdgeSource(e), snapshot.getEdgeSource(e))
+            assertSame(maximumGraph.getEdgeTarget(e), snapshot.getEdgeTarget(e))
+        }
+        for (v in maximumGraph.vertexSet()) {
+            assertEquals(maximumGraph.incomingEdgesOf(v), snapshot.incomingEdgesOf(v))
+            assertEquals(maximumGraph.outgoingEdgesOf(v), snapshot.outgoingEdgesOf(v))
+            assertEquals(maximumGraph.edgesOf(v), snapshot.edgesOf(v))
+            assertEquals(maximumGraph.degreeOf(v), snapshot.degreeOf(v))
+            assertSame(maximumGraph.findNode(v.index), snapshot.findNode(v.index))
+            for (kind in EdgeKind.values())
+                assertEquals(maximumGraph.outgoingEdgesOf(v, kind), snapshot.outgoingEdgesOf(v, kind))
+        }
+    }
+
+    @Test
+    fun `edge lookups and membership agree with the graph`() {
+        val labels = maximumGraph.edgeSet().map { it.label }.toSet()
+        val data = EdgeConstraint(setOf(EdgeKind.DATA, EdgeKind.PHI), null)
+        val controlOrAssociation = EdgeConstraint(setOf(EdgeKind.CONTROL, EdgeKind.ASSOCIATION), null)
+        for (v in maximumGraph.vertexSet()) {
+            for (label in labels)
+                assertEquals(maximumGraph.incomingEdgesOf(v, label), snapshot.incomingEdgesOf(v, label))
+            for (constraint in listOf(data, controlOrAssociation))
+                assertEquals(
+                    maximumGraph.outgoingEdgesOf(v, constraint).toSet(),
+                    snapshot.outgoingEdgesOf(v, constraint).toSet()
+                )
+            for (w in maximumGraph.vertexSet())
+                assertEquals(maximumGraph.getAllEdges(v, w), snapshot.getAllEdges(v, w))
+        }
+        for (e in maximumGraph.edgeSet()) {
+            assertTrue(snapshot.containsEdge(e))
+            assertTrue(e in snapshot.edgesOf(snapshot.getEdgeSource(e)))
+            assertTrue(e in snapshot.outgoingEdgesOf(snapshot.getEdgeSource(e), e.kind))
+            assertFalse(e in snapshot.outgoingEdgesOf(snapshot.getEdgeSource(e), EdgeKind.DEFAULT))
+        }
+        assertFalse(snapshot.containsEdge(AnalysisEdge.Control("not in graph")))
+        assertNull(snapshot.findNode(UInt.MAX_VALUE))
+        assertNull(snapshot.getAllEdges(maximumGraph.vertexSet().first(), AnalysisNode.Default))
+    }
+
+    @Test
+    fun `queries match the snapshot like the graph`() {
+        val query = GraphQuery.importQuery(repeatedNodesQueryText)
+
+        assertEquals(query.match(maximumGraph).toSet(), query.match(snapshot).toSet())
+        assertEquals(maximumGraph.exportSouffle(), StringWriter().also { SouffleExporter().exportGraph(snapshot, it) }.toString())
+    }
+
+    @Test
+    fun `snapshot is read-only`() {
+        val v = maximumGraph.vertexSet().first()
+        assertThrows<UnsupportedOperationException> { snapshot.addVertex(AnalysisNode.Default) }
+        assertThrows<UnsupportedOperationException> { snapshot.removeVertex(v) }
+        assertThrows<UnsupportedOperationException> { snapshot.removeEdge(snapshot.edgeSet().first()) }
+    }
+}
@@ -1,6 +1,7 @@
 package il.ac.technion.cs.mipphd.graal.graphquery
 
 import il.ac.technion.cs.mipphd.graal.Listable
+import il.ac.technion.cs.mipphd.graal.utils.GraalIRGraph
 import il.ac.technion.cs.mipphd.graal.utils.MethodToGraph
 import org.jgrapht.alg.connectivity.ConnectivityInspector
 import org.jgrapht.graph.DirectedPseudograph
@@ -11,6 +12,14 @@ import kotlin.reflect.jvm.javaMethod
 fun <N,E> assertWeaklyConnected(graph: DirectedPseudograph<N,E>) =
     assertTrue(ConnectivityInspector(graph).isConnected) { "Expected weakly connected graph, actual: $graph" }
 
+private class Marker : AnalysisNode.Specific() {
+    override fun description() = "marker"
+}
+
+private class Unmarked : AnalysisNode.Specific() {
+    override fun description() = "unmarked"
+}
+
 internal class AnalysisGraphTest {
     private val methodToGraph = MethodToGraph()
     private val maximum = Listable::maximum.javaMethod
@@ -18,4 +27,122 @@ internal class AnalysisGraphTest {
 
     @Test
     fun `analysis graph is weakly connected`() = assertWeaklyConnected(maximumGraph)
-}
\ No newline at end of file
+
+    @Test
+    fun `direct conversion matches conversion through GraalIRGraph`() {
+        val cfg = methodToGraph.getCFG(maximum)
+        val direct = AnalysisGraph.fromGraal(cfg.asCFG())
+        val throughIR = AnalysisGraph.fromIR(GraalIRGraph.fromGraal(cfg))
+
+        fun edges(graph: AnalysisGraph) = graph.edgeSet().map {
+            listOf(graph.getEdgeSource(it).index, graph.getEdgeTarget(it).index, it.javaClass, it.label,
+                (it as? AnalysisEdge.Phi)?.from?.index)
+        }.sortedBy { it.toString() }
+
+        assertEquals(throughIR.vertexSet(), direct.vertexSet())
+        assertEquals(edges(throughIR), edges(direct))
+    }
+
+    @Test
+    fun `findNode follows added and removed vertices`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        fun assertFindsLikeScan(index: UInt) =
+            assertSame(graph.vertexSet().find { it.index == index }, graph.findNode(index))
+
+        graph.vertexSet().forEach { assertFindsLikeScan(it.index) }
+
+        val marker = Marker()
+        graph.addVertex(marker)
+        assertFindsLikeScan(marker.index)
+
+        val removed = graph.vertexSet().first { it is AnalysisNode.IR }
+        graph.removeVertex(marker)
+        graph.removeVertex(removed)
+        assertFindsLikeScan(marker.index)
+        assertFindsLikeScan(removed.index)
+    }
+
+    @Test
+    fun `edges by kind and label agree with filtering incident edges`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        fun assertBuckets() {
+            for (v in graph.vertexSet()) {
+                for (kind in EdgeKind.values()) {
+                    assertEquals(graph.incomingEdgesOf(v).filter { it.kind == kind }.toSet(), graph.incomingEdgesOf(v, kind))
+                    assertEquals(graph.outgoingEdgesOf(v).filter { it.kind == kind }.toSet(), graph.outgoingEdgesOf(v, kind))
+                }
+                for (label in graph.edgesOf(v).map { it.label }) {
+                    assertEquals(graph.outgoingEdgesOf(v).filter { it.label == label }.toSet(), graph.outgoingEdgesOf(v, label))
+                }
+            }
+        }
+
+        assertBuckets()
+        graph.removeExceptions()
+        assertBuckets()
+    }
+
+    @Test
+    fun `vertices of type agree with filtering all vertices, in order`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        graph.addVertex(Marker())
+        val constraints = listOf(
+            "is('FixedNode')", "is('Invoke') or is('ValuePhiNode')", "is('FixedNode') and not (is('ReturnNode'))",
+            "1 = 1"
+        ).map { NodeTypeConstraint.of(parseMQuery(it)) }
+
+        fun assertIndexed() {
+            for (constraint in constraints)
+                assertEquals(graph.vertexSet().filter(constraint::matches), graph.verticesOfType(constraint).toList())
+        }
+
+        assertIndexed()
+        graph.removeExceptions()
+        assertIndexed()
+    }
+
+    @Test
+    fun `cached predicates agree with matching and are shared between queries`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        val first = GraphQuery.importQuery(repeatedNodesQueryText)
+        val second = GraphQuery.importQuery(
+            """
+            digraph G {
+                state [ label="(?P<state>)|is('FrameState')" ];
+                other [ label="not is('FrameState')" ];
+                state -> other [ label="is('DATA')" ];
+            }
+            """.trimIndent()
+        )
+        val vertices = first.vertexSet() + second.vertexSet()
+
+        val cache = graph.cachePredicates()
+        cache.register(listOf(first, second))
+
+        assertEquals(3, cache.predicateCount) // is('FrameState'), 1 = 1, not is('FrameState')
+        repeat(2) {
+            for (v in vertices)
+                for (node in graph.vertexSet())
+                    assertEquals(v.match(node), graph.matches(v, node))
+        }
+        assertEquals(19, first.match(graph).size)
+    }
+
+    @Test
+    fun `cached predicates are dropped for removed nodes`() {
+        val graph = AnalysisGraph()
+        val markers = List(100) { Marker() }
+        markers.forEach(graph::addVertex)
+        val marked = GraphQueryVertex.fromQuery("is('Marker')")
+        graph.cachePredicates()
+
+        assertTrue(markers.all { graph.matches(marked, it) })
+
+        markers.take(50).forEach(graph::removeVertex)
+        val unmarked = List(100) { Unmarked() }
+        unmarked.forEach(graph::addVertex)
+
+        assertTrue(unmarked.none { graph.matches(marked, it) })
+        assertTrue(markers.drop(50).all { graph.matches(marked, it) })
+    }
+}
@@ -1,10 +1,15 @@
 package il.ac.technion.cs.mipphd.graal.graphquery
 
 import il.ac.technion.cs.mipphd.graal.Listable
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.MatchStatistics
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.QueryPlanner
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.bfsMatchLazily
 import il.ac.technion.cs.mipphd.graal.utils.MethodToGraph
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertSame
 import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
 import java.io.StringReader
 import java.io.StringWriter
 import kotlin.reflect.jvm.javaMethod
@@ -69,4 +74,32 @@ internal class GraphQueryTest {
         }
         assertEquals(18, query.match(cfg).size)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun `cached queries are shared and frozen`() {
+        val cfg = methodToGraph.getCFG(maximum)
+        val query = GraphQuery.cachedQuery(repeatedNodesQueryText)
+
+        assertSame(query, GraphQuery.cachedQuery("\n" + repeatedNodesQueryText.prependIndent("        ") + "\n"))
+        assertSame(query, WholeMatchQuery(repeatedNodesQueryText) { }.query)
+        assertTrue(query.isFrozen)
+        assertThrows<IllegalStateException> { query.addVertex(GraphQueryVertex.fromQuery("1 = 1")) }
+        assertThrows<IllegalStateException> { query.vertexSet().first().setMQuery(parseMQuery("1 = 1")) }
+        assertEquals(19, query.match(cfg).size)
+    }
+
+    @Test
+    fun `lazy matches stop the search early`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        val query = GraphQuery.importQuery(maximumQueryText)
+        val plan = QueryPlanner.plan(query, graph)
+        val all = MatchStatistics().also { bfsMatchLazily(query, graph, plan, it).toList() }
+        val first = MatchStatistics().also { bfsMatchLazily(query, graph, plan, it).first() }
+
+        assertEquals(query.match(graph), query.matchLazily(graph).toList())
+        assertEquals(18L, query.matchFlowable(graph).count().blockingGet())
+        assertTrue(query.anyMatch(graph))
+        assertEquals(1, first.matchCount)
+        assertTrue(first.workItemCount < all.workItemCount)
+    }
+}
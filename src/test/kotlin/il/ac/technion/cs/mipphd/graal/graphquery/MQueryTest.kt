@@ -125,6 +125,33 @@ internal class MQueryTest {
         }
     }
 
+    @Nested
+    @DisplayName("Edge constraint extraction tests")
+    inner class EdgeConstraintTest {
+        @Test
+        fun `kind and label are extracted from a conjunction`() {
+            EdgeConstraint.of(parseMQuery("*|is('CONTROL') and name() = 'next'")) shouldBeEqualTo
+                    EdgeConstraint(setOf(EdgeKind.CONTROL), "next")
+        }
+
+        @Test
+        fun `data includes phi edges`() {
+            EdgeConstraint.of(parseMQuery("is('DATA')")).kinds shouldBeEqualTo setOf(EdgeKind.DATA, EdgeKind.PHI)
+        }
+
+        @Test
+        fun `disjunction of kinds is their union`() {
+            EdgeConstraint.of(parseMQuery("is('CONTROL') or is('ASSOCIATED')")) shouldBeEqualTo
+                    EdgeConstraint(setOf(EdgeKind.CONTROL, EdgeKind.ASSOCIATION), null)
+        }
+
+        @Test
+        fun `anything else is unconstrained`() {
+            EdgeConstraint.of(parseMQuery("*|")) shouldBeEqualTo EdgeConstraint.NONE
+            EdgeConstraint.of(parseMQuery("not (is('DATA'))")) shouldBeEqualTo EdgeConstraint.NONE
+        }
+    }
+
     @Nested
     @DisplayName("Query interpretation tests")
     inner class InterpretTest {
@@ -216,4 +243,41 @@ internal class MQueryTest {
                     .interpret(invokeQueryTarget) shouldBe true
         }
     }
-}
\ No newline at end of file
+
+    @Nested
+    @DisplayName("Compiled predicate tests")
+    inner class CompiledPredicateTest {
+        private val methodToGraph = MethodToGraph()
+        private val maximumGraph = methodToGraph.getAnalysisGraph(Listable::maximum.javaMethod)
+        private val invokeNode = maximumGraph.vertexSet().first { it.isType("Invoke") }
+        private val nodeQueries = listOf(
+            "1 = 1", "2 = 1", "\"foo\" = 2", "not (is('PhiNode'))", "is('Invoke') or is('calc.AddNode')",
+            "is('FixedNode') and not (is('ReturnNode'))", "*|", "[]|is('ValuePhiNode')",
+            """is("Invoke") and method().name = "${targetMethodOf(invokeNode).second}" """
+        )
+        private val edgeQueries = listOf("is('DATA')", "*|is('CONTROL')", "name() = 'next' or is('ASSOCIATED')")
+
+        @Test
+        fun `compiled node predicates agree with interpret`() {
+            for (text in nodeQueries) {
+                val query = parseMQuery(text)
+                val predicate = compileNodePredicate(query)
+                val candidates = if ("method()" in text) listOf(invokeNode) else maximumGraph.vertexSet()
+                for (node in candidates)
+                    predicate.test(node) shouldBeEqualTo query.interpret(QueryTargetNode(node))
+            }
+        }
+
+        @Test
+        fun `compiled edge predicates agree with interpret`() {
+            for (text in edgeQueries) {
+                val query = parseMQuery(text)
+                val predicate = compileEdgePredicate(query)
+                for (edge in maximumGraph.edgeSet()) {
+                    val source = maximumGraph.getEdgeSource(edge)
+                    predicate.test(source, edge) shouldBeEqualTo query.interpret(QueryTargetEdge(source, edge))
+                }
+            }
+        }
+    }
+}
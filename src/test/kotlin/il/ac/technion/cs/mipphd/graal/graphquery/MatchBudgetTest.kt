@@ -0,0 +1,69 @@
+package il.ac.technion.cs.mipphd.graal.graphquery
+
+import il.ac.technion.cs.mipphd.graal.Listable
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.MatchOptions
+import il.ac.technion.cs.mipphd.graal.utils.MethodToGraph
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.time.Duration
+import kotlin.reflect.jvm.javaMethod
+
+internal class MatchBudgetTest {
+    private val methodToGraph = MethodToGraph()
+    private val maximumGraph = methodToGraph.getAnalysisGraph(Listable::maximum.javaMethod)
+
+    @Test
+    fun `unlimited budget finds every match`() {
+        val query = GraphQuery.importQuery(maximumQueryText)
+
+        val table = query.match(maximumGraph, MatchBudget.UNLIMITED)
+
+        assertEquals(query.match(maximumGraph), table)
+        assertFalse(table.truncated)
+        assertFalse(table.isTruncated)
+    }
+
+    @Test
+    fun `match limit truncates`() {
+        val query = GraphQuery.importQuery(maximumQueryText)
+        assertTrue(query.match(maximumGraph).size > 1)
+
+        val table = query.match(maximumGraph, MatchBudget(maxMatches = 1))
+
+        assertEquals(1, table.size)
+        assertTrue(table.truncated)
+        assertTrue(query.match(maximumGraph).contains(table.single()))
+    }
+
+    @Test
+    fun `state limit truncates`() {
+        val query = GraphQuery.importQuery(maximumQueryText)
+
+        val table = query.match(maximumGraph, MatchBudget(maxStates = 0))
+
+        assertEquals(0, table.size)
+        assertTrue(table.truncated)
+    }
+
+    @Test
+    fun `cancelled and expired budgets stop the search`() {
+        val query = GraphQuery.importQuery(maximumQueryText)
+        val token = CancellationToken().also { it.cancel() }
+
+        for (budget in listOf(MatchBudget(cancellation = token), MatchBudget(timeout = Duration.ZERO))) {
+            for (parallelism in listOf(1, 4)) {
+                val table = query.match(maximumGraph, MatchOptions(parallelism = parallelism), budget)
+                assertEquals(0, table.size)
+                assertTrue(table.truncated)
+            }
+        }
+    }
+
+    @Test
+    fun `negative limits are rejected`() {
+        assertThrows<IllegalArgumentException> { MatchBudget(maxStates = -1) }
+    }
+}
@@ -0,0 +1,53 @@
+package il.ac.technion.cs.mipphd.graal.graphquery
+
+import il.ac.technion.cs.mipphd.graal.Listable
+import il.ac.technion.cs.mipphd.graal.utils.MethodToGraph
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import kotlin.reflect.jvm.javaMethod
+
+internal class MatchTableTest {
+    private val methodToGraph = MethodToGraph()
+    private val maximumGraph = methodToGraph.getAnalysisGraph(Listable::maximum.javaMethod)
+
+    @Test
+    fun `table views equal the matches`() {
+        val query = GraphQuery.importQuery(maximumQueryText)
+
+        val matches = query.match(maximumGraph)
+        val table = query.matchTable(maximumGraph)
+
+        assertEquals(matches, table)
+        assertEquals(matches.hashCode(), table.hashCode())
+        assertTrue(table.nodeCount <= maximumGraph.vertexSet().size)
+        for ((row, match) in matches.withIndex()) {
+            for ((vertex, nodes) in match) {
+                assertEquals(nodes, table.nodesOf(row, vertex))
+                assertEquals(nodes.size, table.cellSize(row, vertex))
+            }
+        }
+    }
+
+    @Test
+    fun `multi-valued and missing cells`() {
+        val query = GraphQuery.importQuery(repeatedNodesQueryText)
+        val (framestate, merge, values) = listOf("framestate", "merge", "values")
+            .map { name -> query.vertexSet().single { it.name == name } }
+        val nodes = maximumGraph.vertexSet().take(3)
+
+        val table = MatchTable.Builder(listOf(framestate, merge, values))
+            .add(mapOf(Pair(framestate, listOf(nodes[0])), Pair(merge, listOf(nodes[1])), Pair(values, nodes)))
+            .add(mapOf(Pair(framestate, listOf(nodes[2])), Pair(merge, listOf(nodes[1]))))
+            .build()
+
+        assertEquals(2, table.size)
+        assertEquals(3, table.nodeCount)
+        assertEquals(nodes, table[0][values])
+        assertEquals(listOf<AnalysisNode>(), table[1][values])
+        assertEquals(listOf(nodes[2]), table[1][framestate])
+        assertThrows<IndexOutOfBoundsException> { table[2] }
+        assertThrows<IllegalArgumentException> { table.nodesOf(0, GraphQueryVertex.fromQuery("1 = 1")) }
+    }
+}
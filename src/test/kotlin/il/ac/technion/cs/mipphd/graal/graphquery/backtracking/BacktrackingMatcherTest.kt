@@ -0,0 +1,138 @@
+package il.ac.technion.cs.mipphd.graal.graphquery.backtracking
+
+import il.ac.technion.cs.mipphd.graal.Listable
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisGraph
+import il.ac.technion.cs.mipphd.graal.graphquery.GraphQuery
+import il.ac.technion.cs.mipphd.graal.graphquery.anyHolder2
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.KleeneMode
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.MatchOptions
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.MatchStatistics
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.QueryPlanner
+import il.ac.technion.cs.mipphd.graal.graphquery.bfs.bfsMatch
+import il.ac.technion.cs.mipphd.graal.graphquery.maximumQueryText
+import il.ac.technion.cs.mipphd.graal.graphquery.pointsto.PointsToAnalysis
+import il.ac.technion.cs.mipphd.graal.graphquery.repeatedNodesQueryText
+import il.ac.technion.cs.mipphd.graal.utils.MethodToGraph
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.DynamicTest
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestFactory
+import kotlin.reflect.jvm.javaMethod
+
+internal class BacktrackingMatcherTest {
+    private val methodToGraph = MethodToGraph()
+    private val maximumGraph = methodToGraph.getAnalysisGraph(Listable::maximum.javaMethod)
+
+    private fun hasLoop(i: List<Int>): Int {
+        var n = 5
+        for (e in i) {
+            n += e * 3
+        }
+        return n
+    }
+
+    private fun assertSameAsBFS(query: GraphQuery, graph: AnalysisGraph, options: MatchOptions = MatchOptions.DEFAULT) {
+        val plan = QueryPlanner.plan(query, graph, options)
+        val bfsStatistics = MatchStatistics()
+        val backtrackingStatistics = MatchStatistics()
+
+        val expected = bfsMatch(query, graph, plan, bfsStatistics, options)
+        val actual = BacktrackingMatcher(query, graph, plan, backtrackingStatistics, options).match()
+
+        assertEquals(expected.size, actual.size)
+        assertEquals(expected.toSet(), actual.toSet())
+        assertEquals(bfsStatistics.workItemCount, backtrackingStatistics.workItemCount)
+        assertEquals(bfsStatistics.matchCount, backtrackingStatistics.matchCount)
+    }
+
+    @Test
+    fun `maximum query matches like bfs`() =
+        assertSameAsBFS(GraphQuery.importQuery(maximumQueryText), maximumGraph)
+
+    @Test
+    fun `repeated query matches like bfs`() =
+        assertSameAsBFS(GraphQuery.importQuery(repeatedNodesQueryText), maximumGraph)
+
+    @Test
+    fun `multiple sources to LoopBegin match like bfs`() {
+        val query = GraphQuery.importQuery(
+            """
+            digraph G {
+                sources [ label="[](?P<sources>)|" ];
+                destination [ label="(?P<destination>)|is('LoopBeginNode')" ];
+
+                sources -> destination [ label = "is('CONTROL')" ];
+            }
+            """.trimIndent()
+        )
+        assertSameAsBFS(query, methodToGraph.getAnalysisGraph(::hasLoop.javaMethod))
+    }
+
+    @TestFactory
+    fun `queries of the other suites match like bfs`(): List<DynamicTest> {
+        val anyHolderGraph = methodToGraph.getAnalysisGraph(::anyHolder2.javaMethod)
+        val nop = PointsToAnalysis.NOP_NODES.joinToString(" or ") { "is('$it')" }
+        val cases = listOf(
+            Triple("maximum", maximumQueryText, maximumGraph),
+            Triple("repeated nodes", repeatedNodesQueryText, maximumGraph),
+            Triple(
+                "captured kleene target", """
+                digraph G {
+                    start [ label="is('StartNode')" ];
+                    reached [ label="(?P<reached>)|1 = 1" ];
+                    start -> reached [ label="*|is('CONTROL')" ];
+                }
+                """.trimIndent(), maximumGraph
+            ),
+            Triple(
+                "repeated vertex with two edges", """
+                digraph G {
+                    framestate [ label="is('FrameState')"];
+                    values [ label="[]|1 = 1"];
+                    values -> framestate [ label = "is('DATA')"];
+                    framestate -> values [ label = "is('DATA')"];
+                }
+                """.trimIndent(), maximumGraph
+            ),
+            Triple(
+                "stored values", """
+                digraph G {
+                    storeNode [ label="(?P<store>)|is('StoreFieldNode')" ];
+                    nop [ label="(?P<nop>)|$nop" ];
+                    value [ label="(?P<value>)|${PointsToAnalysis.NOT_VALUE_NODES.joinToString(" and ") { "not is('$it')" }}" ];
+                    value -> nop [ label="*|is('DATA')" ];
+                    nop -> storeNode [ label="name() = 'value'" ];
+                }
+                """.trimIndent(), anyHolderGraph
+            ),
+            Triple(
+                "associated allocations", """
+                digraph G {
+                    storeNode [ label="(?P<store>)|is('StoreFieldNode') or is('LoadFieldNode')" ];
+                    nop [ label="(?P<nop>)|$nop" ];
+                    allocated [ label="(?P<value>)|is('AllocatedObjectNode')" ];
+                    allocated -> nop [ label="*|is('DATA')" ];
+                    nop -> storeNode [ label="name() = 'object'" ];
+                }
+                """.trimIndent(), anyHolderGraph
+            ),
+        )
+        return cases.flatMap { (name, text, graph) ->
+            KleeneMode.values().map { mode ->
+                DynamicTest.dynamicTest("$name, $mode") {
+                    assertSameAsBFS(GraphQuery.importQuery(text), graph, MatchOptions(mode))
+                }
+            }
+        }
+    }
+
+    @Test
+    fun `compiled backtracking query executes all queries`() {
+        val queries = listOf(maximumQueryText, repeatedNodesQueryText).map { GraphQuery.importQuery(it) }
+
+        val results = BacktrackingQueryCompiler().compile(queries).execute(maximumGraph)
+
+        assertEquals(18, results.getValue(queries[0]).size)
+        assertEquals(19, results.getValue(queries[1]).size)
+    }
+}
@@ -1,10 +1,17 @@
 package il.ac.technion.cs.mipphd.graal.graphquery.bfs
 
+import arrow.core.Either
 import il.ac.technion.cs.mipphd.graal.utils.GraalIRGraph
 import il.ac.technion.cs.mipphd.graal.Listable
 import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisNode
 import il.ac.technion.cs.mipphd.graal.graphquery.GraphQuery
+import il.ac.technion.cs.mipphd.graal.graphquery.GraphQueryEdgeMatchType
+import il.ac.technion.cs.mipphd.graal.graphquery.GraphQueryVertex
+import il.ac.technion.cs.mipphd.graal.graphquery.Reachability
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisEdge
 import il.ac.technion.cs.mipphd.graal.graphquery.anyHolder2
+import il.ac.technion.cs.mipphd.graal.graphquery.maximumQueryText
+import il.ac.technion.cs.mipphd.graal.graphquery.repeatedNodesQueryText
 import il.ac.technion.cs.mipphd.graal.utils.MethodToGraph
 import org.junit.jupiter.api.Assertions.*
 import org.junit.jupiter.api.Test
@@ -116,4 +123,235 @@ digraph G {
         }
         println(results)
     }
-}
\ No newline at end of file
+
+    @Test
+    fun `lazy permutations enumerate the cartesian product in order`() {
+        val vertices = List(3) { GraphQueryVertex.fromQuery("1 = 1") }
+        val options: List<List<MatchedNodes>> =
+            List(3) { i -> List(i + 2) { n -> Either.Right(List(n + 1) { AnalysisNode.Default }) } }
+        val byVertex = vertices.zip(options).toMap()
+        val expected = cartesianProduct(*options.map { it.toSet() }.toTypedArray()).map { vertices.zip(it).toMap() }
+
+        assertEquals(expected, permutationsLazily(byVertex).toList())
+        assertEquals(expected, permutations(byVertex))
+        assertEquals(
+            expected.filter { it[vertices[1]] != options[1][0] },
+            permutationsLazily(byVertex) { q, m -> q != vertices[1] || m != options[1][0] }.toList()
+        )
+        assertEquals(listOf(mapOf<GraphQueryVertex, MatchedNodes>()), permutationsLazily(mapOf()).toList())
+    }
+
+    @Test
+    fun `reachability kleene mode finds each endpoint once`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        val query = GraphQuery.importQuery(maximumQueryText)
+        val plan = QueryPlanner.plan(query, graph)
+        fun endpoints(results: List<Map<GraphQueryVertex, List<AnalysisNode>>>) =
+            results.map { match -> match.mapValues { (_, nodes) -> nodes.lastOrNull() } }.toSet()
+
+        val paths = bfsMatch(query, graph, plan)
+        val reachability = bfsMatch(query, graph, plan, options = MatchOptions(KleeneMode.REACHABILITY))
+
+        assertEquals(endpoints(paths), endpoints(reachability))
+        assertEquals(endpoints(reachability).size, reachability.size)
+    }
+
+    @Test
+    fun `reachability kleene mode gives witness paths to captured vertices`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        val query = GraphQuery.importQuery(
+            """
+            digraph G {
+                start [ label="is('StartNode')" ];
+                reached [ label="(?P<reached>)|1 = 1" ];
+                start -> reached [ label="*|is('CONTROL')" ];
+            }
+            """.trimIndent()
+        )
+        val start = query.vertexSet().single { it.name == "start" }
+        val reached = query.vertexSet().single { it.name == "reached" }
+
+        val results = bfsMatch(query, graph, QueryPlanner.plan(query, graph), options = MatchOptions(KleeneMode.REACHABILITY))
+
+        assertEquals(results.size, results.map { it.getValue(reached).lastOrNull() }.toSet().size)
+        for (result in results) {
+            val path = result.getValue(start) + result.getValue(reached)
+            path.zipWithNext().forEach { (from, to) ->
+                assertTrue(graph.getAllEdges(from, to).any { it is AnalysisEdge.Control }) { "No control edge $from -> $to" }
+            }
+        }
+
+        val edge = query.edgeSet().single()
+        val startNode = results.first().getValue(start).single()
+        val memoized = graph.reachableFrom(startNode, edge, reached)
+        assertSame(memoized, graph.reachableFrom(startNode, edge, reached))
+        graph.removeEdge(graph.edgeSet().first())
+        assertNotSame(memoized, graph.reachableFrom(startNode, edge, reached))
+    }
+
+    @Test
+    fun `kleene edges followed backwards find the same matches`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        val query = GraphQuery.importQuery(maximumQueryText)
+        val returnVertex = query.vertexSet().single { it.name == "n1744166494" }
+        val kleeneTargets = query.edgeSet().filter { it.matchType == GraphQueryEdgeMatchType.KLEENE }
+            .map(query::getEdgeTarget).toSet()
+        fun projected(results: List<Map<GraphQueryVertex, List<AnalysisNode>>>) =
+            results.map { match -> match.filterKeys { it !in kleeneTargets } }.toSet()
+
+        val forwards = bfsMatch(query, graph, QueryPlanner.plan(query, graph))
+        val backwards = bfsMatch(query, graph, returnVertex)
+        val reachability = MatchOptions(KleeneMode.REACHABILITY)
+        val plan = QueryPlanner.plan(query, graph, reachability)
+
+        assertTrue(forwards.isNotEmpty())
+        assertEquals(projected(forwards), projected(backwards))
+        assertEquals(projected(forwards), projected(bfsMatch(query, graph, plan, options = reachability)))
+        assertEquals(plan.vertexEstimates.values.minOrNull(), plan.vertexEstimates.getValue(plan.start))
+    }
+
+    @Test
+    fun `kleene targets are bound to the path whichever end the search starts from`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        val query = GraphQuery.importQuery(
+            """
+            digraph G {
+                a [ label="(?P<a>)|is('StartNode')" ];
+                b [ label="(?P<b>)|is('FixedNode')" ];
+                a -> b [ label="*|is('CONTROL')" ];
+            }
+            """.trimIndent()
+        )
+        val a = query.vertexSet().single { it.name == "a" }
+        val b = query.vertexSet().single { it.name == "b" }
+        fun matchFrom(queryStart: GraphQueryVertex, options: MatchOptions) =
+            graph.vertexSet().filter { graph.matches(queryStart, it) }
+                .flatMap { bfsMatch(query, graph, queryStart, it, options = options) }
+                .toSet()
+
+        for (mode in KleeneMode.values()) {
+            val options = MatchOptions(mode)
+            val forwards = matchFrom(a, options)
+            val backwards = matchFrom(b, options)
+
+            assertTrue(forwards.isNotEmpty())
+            assertEquals(forwards, backwards) { "$mode" }
+            for (result in backwards) {
+                val path = result.getValue(a) + result.getValue(b)
+                path.zipWithNext().forEach { (from, to) ->
+                    assertTrue(graph.getAllEdges(from, to).any { it is AnalysisEdge.Control }) { "No control edge $from -> $to" }
+                }
+            }
+        }
+    }
+
+    @Test
+    fun `bidirectional search agrees with reachable sets`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        val query = GraphQuery.importQuery(
+            """
+            digraph G {
+                start [ label="is('StartNode')" ];
+                reached [ label="1 = 1" ];
+                start -> reached [ label="*|is('CONTROL')" ];
+            }
+            """.trimIndent()
+        )
+        val edge = query.edgeSet().single()
+        val reached = query.vertexSet().single { it.name == "reached" }
+        val startNode = graph.vertexSet().single { it is AnalysisNode.IR && it.isType("StartNode") }
+
+        val forwards = graph.reachableFrom(startNode, edge, reached)
+        assertTrue(forwards.nodes.isNotEmpty())
+        for (node in graph.vertexSet()) {
+            assertEquals(node in forwards, Reachability.connected(graph, startNode, node, edge, reached)) { "$node" }
+            assertEquals(node in forwards, startNode in graph.reachableTo(node, edge, reached)) { "$node" }
+        }
+        for (node in forwards.nodes) {
+            val path = listOf(startNode) + graph.reachableTo(node, edge, reached).pathTo(startNode)
+            assertEquals(node, path.last())
+            path.zipWithNext().forEach { (from, to) ->
+                assertTrue(graph.getAllEdges(from, to).any { it is AnalysisEdge.Control }) { "No control edge $from -> $to" }
+            }
+        }
+    }
+
+    @Test
+    fun `repeated leaves are collected in a single match`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        val query = GraphQuery.importQuery(repeatedNodesQueryText)
+        val values = query.vertexSet().single { it.name == "values" }
+        val statistics = MatchStatistics()
+
+        val results = bfsMatch(query, graph, QueryPlanner.plan(query, graph), statistics)
+
+        assertEquals(19, results.size)
+        assertEquals(results.size.toLong(), statistics.matchCount)
+        assertTrue(results.any { it.getValue(values).size > 1 })
+        results.forEach { assertEquals(it.getValue(values).distinct(), it.getValue(values)) }
+    }
+
+    @Test
+    fun `repeated vertices with several edges satisfy all of them`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        val query = GraphQuery.importQuery(
+            """
+            digraph G {
+                framestate [ label="is('FrameState')"];
+                values [ label="[]|1 = 1"];
+                values -> framestate [ label = "is('DATA')"];
+                framestate -> values [ label = "is('DATA')"];
+            }
+            """.trimIndent()
+        )
+        val framestate = query.vertexSet().single { it.name == "framestate" }
+        val values = query.vertexSet().single { it.name == "values" }
+
+        for (match in bfsMatch(query, graph, QueryPlanner.plan(query, graph))) {
+            val fs = match.getValue(framestate).single()
+            for (node in match.getValue(values)) {
+                assertTrue(graph.getAllEdges(node, fs).any { it is AnalysisEdge.Data }) { "$node -> $fs" }
+                assertTrue(graph.getAllEdges(fs, node).any { it is AnalysisEdge.Data }) { "$fs -> $node" }
+            }
+        }
+    }
+
+    @Test
+    fun `binding keys identify equal partial matches`() {
+        val query = GraphQuery.importQuery(repeatedNodesQueryText)
+        val (framestate, merge, values) = listOf("framestate", "merge", "values")
+            .map { name -> query.vertexSet().single { it.name == name } }
+        val nodes = List<AnalysisNode>(3) {
+            object : AnalysisNode.Specific() {
+                override fun description() = "node"
+            }
+        }
+        fun item(vararg queued: Pair<GraphQueryVertex, MatchedNodes>) =
+            WorkItem(mapOf(Pair(framestate, Either.Right(listOf(nodes[0])))), queued.toList())
+        val keys = BindingKeys(query)
+
+        val first = keys.keyOf(item(Pair(merge, Either.Right(listOf(nodes[1]))), Pair(values, Either.Left(nodes[2]))))
+        val same = keys.keyOf(item(Pair(merge, Either.Right(listOf(nodes[1]))), Pair(values, Either.Left(nodes[2]))))
+        val reordered = keys.keyOf(item(Pair(values, Either.Left(nodes[2])), Pair(merge, Either.Right(listOf(nodes[1])))))
+        val path = keys.keyOf(item(Pair(merge, Either.Right(listOf(nodes[1], nodes[2])))))
+
+        assertEquals(first, same)
+        assertNotEquals(first, reordered)
+        assertNotEquals(first, path)
+        assertTrue(keys.firstSeen(first))
+        assertFalse(keys.firstSeen(same))
+        assertTrue(keys.firstSeen(path))
+    }
+
+    @Test
+    fun `duplicate partial matches are expanded once`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        val query = GraphQuery.importQuery(maximumQueryText)
+        val statistics = MatchStatistics()
+
+        val results = bfsMatch(query, graph, QueryPlanner.plan(query, graph), statistics)
+
+        assertEquals(results.size.toLong(), statistics.matchCount)
+        assertTrue(query.explain(graph).contains("duplicates)"))
+    }
+}
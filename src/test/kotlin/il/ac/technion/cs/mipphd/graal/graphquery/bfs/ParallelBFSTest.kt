@@ -0,0 +1,65 @@
+package il.ac.technion.cs.mipphd.graal.graphquery.bfs
+
+import il.ac.technion.cs.mipphd.graal.Listable
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisNode
+import il.ac.technion.cs.mipphd.graal.graphquery.GraphQuery
+import il.ac.technion.cs.mipphd.graal.graphquery.GraphQueryVertex
+import il.ac.technion.cs.mipphd.graal.graphquery.maximumQueryText
+import il.ac.technion.cs.mipphd.graal.graphquery.repeatedNodesQueryText
+import il.ac.technion.cs.mipphd.graal.utils.MethodToGraph
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.util.concurrent.ForkJoinWorkerThread
+import kotlin.reflect.jvm.javaMethod
+
+internal class ParallelBFSTest {
+    private val methodToGraph = MethodToGraph()
+    private val maximumGraph = methodToGraph.getAnalysisGraph(Listable::maximum.javaMethod)
+    private val parallel = MatchOptions(parallelism = 4)
+
+    /* Repeated vertices are bound to the nodes of all the matches in a group, in the order they were found */
+    private fun unordered(results: List<Map<GraphQueryVertex, List<AnalysisNode>>>) =
+        results.map { match -> match.mapValues { (_, nodes) -> nodes.toSet() } }.toSet()
+
+    private fun assertSameAsBFS(query: GraphQuery) {
+        val plan = QueryPlanner.plan(query, maximumGraph)
+        val sequentialStatistics = MatchStatistics()
+        val parallelStatistics = MatchStatistics()
+
+        val expected = bfsMatch(query, maximumGraph, plan, sequentialStatistics)
+        val actual = bfsMatchParallel(query, maximumGraph, plan, parallelStatistics, parallel)
+
+        assertEquals(expected.size, actual.size)
+        assertEquals(unordered(expected), unordered(actual))
+        assertEquals(sequentialStatistics.workItemCount, parallelStatistics.workItemCount)
+        assertEquals(sequentialStatistics.matchCount, parallelStatistics.matchCount)
+        repeat(5) { assertEquals(actual, bfsMatchParallel(query, maximumGraph, plan, options = parallel)) }
+    }
+
+    @Test
+    fun `maximum query matches like bfs`() = assertSameAsBFS(GraphQuery.importQuery(maximumQueryText))
+
+    @Test
+    fun `repeated query matches like bfs`() = assertSameAsBFS(GraphQuery.importQuery(repeatedNodesQueryText))
+
+    @Test
+    fun `compiled queries match in parallel`() {
+        val query = GraphQuery.importQuery(maximumQueryText)
+
+        val results = BFSQueryCompiler(4).compile(listOf(query)).execute(maximumGraph)
+
+        assertEquals(query.match(maximumGraph).toSet(), results.getValue(query).toSet())
+    }
+
+    @Test
+    fun `any parallelism gives the same matches on daemon threads`() {
+        val query = GraphQuery.importQuery(maximumQueryText)
+        val plan = QueryPlanner.plan(query, maximumGraph)
+        val expected = bfsMatchParallel(query, maximumGraph, plan, options = parallel)
+
+        for (parallelism in 2..9)
+            assertEquals(expected, bfsMatchParallel(query, maximumGraph, plan, options = MatchOptions(parallelism = parallelism)))
+        assertTrue(Thread.getAllStackTraces().keys.filterIsInstance<ForkJoinWorkerThread>().all { it.isDaemon })
+    }
+}
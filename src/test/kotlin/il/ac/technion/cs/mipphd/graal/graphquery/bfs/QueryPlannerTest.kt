@@ -0,0 +1,120 @@
+package il.ac.technion.cs.mipphd.graal.graphquery.bfs
+
+import il.ac.technion.cs.mipphd.graal.Listable
+import il.ac.technion.cs.mipphd.graal.graphquery.AnalysisNode
+import il.ac.technion.cs.mipphd.graal.graphquery.EdgeConstraint
+import il.ac.technion.cs.mipphd.graal.graphquery.GraphQuery
+import il.ac.technion.cs.mipphd.graal.graphquery.maximumQueryText
+import il.ac.technion.cs.mipphd.graal.graphquery.repeatedNodesQueryText
+import il.ac.technion.cs.mipphd.graal.utils.MethodToGraph
+import org.junit.jupiter.api.Assertions.*
+import org.junit.jupiter.api.Test
+import kotlin.reflect.jvm.javaMethod
+
+internal class QueryPlannerTest {
+    private val methodToGraph = MethodToGraph()
+    private val maximum = Listable::maximum.javaMethod
+
+    @Test
+    fun `kleene sources are not planned as a later step`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        val query = GraphQuery.importQuery(maximumQueryText)
+
+        val plan = QueryPlanner.plan(query, graph)
+
+        assertEquals("n2021302077", plan.start.name)
+        assertEquals(
+            bfsMatch(query, graph, plan.start).toSet(),
+            bfsMatch(query, graph, plan).toSet()
+        )
+    }
+
+    @Test
+    fun `starts from the most selective vertex`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        val query = GraphQuery.importQuery(repeatedNodesQueryText)
+        val framestate = query.vertexSet().single { it.name == "framestate" }
+        val merge = query.vertexSet().single { it.name == "merge" }
+
+        val plan = QueryPlanner.plan(query, graph)
+
+        assertEquals(framestate, plan.start)
+        assertEquals(graph.vertexSet().size.toDouble(), plan.vertexEstimates.getValue(merge))
+        assertTrue(plan.vertexEstimates.getValue(framestate) < plan.vertexEstimates.getValue(merge))
+    }
+
+    @Test
+    fun `explain reports estimated and actual sizes`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        val query = GraphQuery.importQuery(repeatedNodesQueryText)
+
+        val statistics = MatchStatistics()
+        val plan = QueryPlanner.plan(query, graph)
+        val results = bfsMatch(query, graph, plan, statistics)
+        val explanation = query.explain(graph)
+        println(explanation)
+
+        assertEquals(19, results.size)
+        assertEquals(plan.vertexEstimates.getValue(plan.start).toInt(), statistics.nodesBoundTo(plan.start))
+        assertTrue(explanation.startsWith("start: framestate"))
+        assertTrue(explanation.contains("matches: ${statistics.matchCount}"))
+    }
+
+    @Test
+    fun `vertices the planner can't evaluate on every node are estimated by their type`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        // name() isn't implemented for nodes, but the search only tries ret on return nodes
+        val query = GraphQuery.importQuery(
+            """
+digraph G {
+    value [ label="(?P<value>)|not is('ReturnNode')" ];
+    ret [ label="(?P<ret>)|is('ReturnNode') or name() = 'x'" ];
+    value -> ret [ label="name() = 'result'" ];
+}
+"""
+        )
+        val value = query.vertexSet().single { it.name == "value" }
+        val ret = query.vertexSet().single { it.name == "ret" }
+
+        val plan = QueryPlanner.plan(query, graph)
+        val results = bfsMatch(query, graph, plan)
+
+        assertEquals(value, plan.start)
+        assertEquals(graph.vertexSet().size.toDouble(), plan.vertexEstimates.getValue(ret))
+        assertFalse(results.isEmpty())
+        assertTrue(results.all { it.getValue(ret).single().isType("ReturnNode") })
+    }
+
+    @Test
+    fun `plans are reused until the graph changes`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        val query = GraphQuery.importQuery(repeatedNodesQueryText)
+
+        val plan = QueryPlanner.plan(query, graph)
+        assertSame(plan, QueryPlanner.plan(query, graph))
+        assertNotSame(plan, QueryPlanner.plan(query, graph, MatchOptions(KleeneMode.REACHABILITY)))
+
+        graph.addVertex(object : AnalysisNode.Specific() {
+            override fun description() = "marker"
+        })
+        assertNotSame(plan, QueryPlanner.plan(query, graph))
+    }
+
+    @Test
+    fun `edge histogram counts like listing the edges`() {
+        val graph = methodToGraph.getAnalysisGraph(maximum)
+        val snapshot = graph.snapshot()
+        val query = GraphQuery.importQuery(repeatedNodesQueryText)
+        val constraints = query.edgeSet().map { it.constraint } + graph.edgeSet().map { it.label }.distinct()
+            .map { EdgeConstraint(null, it) }
+
+        for (constraint in constraints) {
+            val count = graph.edgesOf(constraint).count { constraint.matches(it) }
+            assertEquals(count, graph.edgeCount(constraint))
+            assertEquals(count, snapshot.edgeCount(constraint))
+        }
+        graph.removeExceptions()
+        for (constraint in constraints)
+            assertEquals(graph.edgesOf(constraint).count { constraint.matches(it) }, graph.edgeCount(constraint))
+    }
+}